@@ -1,5 +1,8 @@
 package com.sprd.powersavemodelauncher.allapps;
 
+import android.support.v7.widget.RecyclerView;
+import android.view.ViewGroup;
+
 import com.sprd.powersavemodelauncher.AppInfo;
 import com.sprd.powersavemodelauncher.BaseModelTestCase;
 
@@ -9,11 +12,15 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
 
 /**
  * Created by unisoc on 2019/12/23
@@ -27,6 +34,8 @@ public class AlphabeticalAppsListTest extends BaseModelTestCase {
     public void setUp() {
         ShadowLog.stream = System.out;
         mTargetContext = RuntimeEnvironment.application;
+        // The snapshots are only built when the test runs them, see runPendingSnapshots()
+        shadowOf(AlphabeticalAppsList.getWorkerLooper()).pause();
         mAppsList = new AlphabeticalAppsList(mTargetContext);
         initAllApps();
 
@@ -57,4 +66,130 @@ public class AlphabeticalAppsListTest extends BaseModelTestCase {
         mAppsList.removeApps(appsToRemove);
         assertTrue(mAppsList.getApps().size() == 4);
     }
+
+    @Test
+    public void testAddAppsKeepsOrder() {
+        List<AppInfo> appsToAdd = new ArrayList<>();
+        appsToAdd.add(getInfo("app0"));
+        mAppsList.addApps(appsToAdd);
+        appsToAdd.clear();
+        appsToAdd.add(getInfo("app35"));
+        mAppsList.addApps(appsToAdd);
+        assertOrder("app0", "app1", "app2", "app3", "app35", "app4", "app5");
+    }
+
+    @Test
+    public void testUpdateAppsReplacesApp() {
+        List<AppInfo> appsToUpdate = new ArrayList<>();
+        AppInfo updated = getInfo("app3");
+        appsToUpdate.add(updated);
+        mAppsList.updateApps(appsToUpdate);
+        assertOrder("app1", "app2", "app3", "app4", "app5");
+        assertSame(updated, mAppsList.getApps().get(2));
+    }
+
+    @Test
+    public void testUpdateAppsInPlaceNotifiesAdapter() {
+        ChangeObserver observer = new ChangeObserver();
+        mAppsList = new AlphabeticalAppsList(mTargetContext);
+        mAppsList.setAdapter(newAdapter(observer));
+        initAllApps();
+        runPendingSnapshots();
+        assertEquals(1, observer.dataSetChangedCount);
+
+        // The model changes the icons of the same app objects
+        AppInfo app = mAppsList.getApps().get(2);
+        List<AppInfo> appsToUpdate = new ArrayList<>();
+        appsToUpdate.add(app);
+        mAppsList.updateApps(appsToUpdate);
+        runPendingSnapshots();
+
+        assertEquals(1, observer.dataSetChangedCount);
+        assertEquals(1, observer.changedPositions.size());
+        int position = observer.changedPositions.get(0);
+        assertSame(app, mAppsList.getAdapterItems().get(position).appInfo);
+    }
+
+    @Test
+    public void testUpdateAppsWithTitleChangedInPlaceSortsApps() {
+        ChangeObserver observer = new ChangeObserver();
+        mAppsList = new AlphabeticalAppsList(mTargetContext);
+        mAppsList.setAdapter(newAdapter(observer));
+        initAllApps();
+        runPendingSnapshots();
+
+        // The model changes the title of the same app object
+        AppInfo app = mAppsList.getApps().get(2);
+        app.title = "app0";
+        List<AppInfo> appsToUpdate = new ArrayList<>();
+        appsToUpdate.add(app);
+        mAppsList.updateApps(appsToUpdate);
+        runPendingSnapshots();
+
+        assertOrder("app0", "app1", "app2", "app4", "app5");
+        assertEquals(2, observer.dataSetChangedCount);
+        assertSame(app, mAppsList.getAdapterItems().get(1).appInfo);
+    }
+
+    @Test
+    public void testAddAppsAfterTitleChangedInPlaceKeepsOrder() {
+        // The update of the renamed app is not bound yet
+        mAppsList.getApps().get(4).title = "app00";
+        List<AppInfo> appsToAdd = new ArrayList<>();
+        appsToAdd.add(getInfo("app35"));
+        mAppsList.addApps(appsToAdd);
+        assertOrder("app00", "app1", "app2", "app3", "app35", "app4");
+    }
+
+    /**
+     * Builds the pending adapter snapshots and swaps them in.
+     */
+    private static void runPendingSnapshots() {
+        shadowOf(AlphabeticalAppsList.getWorkerLooper()).idle();
+        ShadowLooper.idleMainLooper();
+    }
+
+    private RecyclerView.Adapter newAdapter(RecyclerView.AdapterDataObserver observer) {
+        RecyclerView.Adapter adapter = new RecyclerView.Adapter() {
+            @Override
+            public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+                return null;
+            }
+
+            @Override
+            public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) { }
+
+            @Override
+            public int getItemCount() {
+                return mAppsList.getAdapterItems().size();
+            }
+        };
+        adapter.registerAdapterDataObserver(observer);
+        return adapter;
+    }
+
+    private static class ChangeObserver extends RecyclerView.AdapterDataObserver {
+        int dataSetChangedCount;
+        final List<Integer> changedPositions = new ArrayList<>();
+
+        @Override
+        public void onChanged() {
+            dataSetChangedCount++;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            for (int i = 0; i < itemCount; i++) {
+                changedPositions.add(positionStart + i);
+            }
+        }
+    }
+
+    private void assertOrder(String... titles) {
+        List<AppInfo> apps = mAppsList.getApps();
+        assertEquals(titles.length, apps.size());
+        for (int i = 0; i < titles.length; i++) {
+            assertEquals(titles[i], apps.get(i).title);
+        }
+    }
 }
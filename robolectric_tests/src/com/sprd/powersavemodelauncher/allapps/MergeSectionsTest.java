@@ -0,0 +1,149 @@
+package com.sprd.powersavemodelauncher.allapps;
+
+import com.sprd.powersavemodelauncher.AppInfo;
+import com.sprd.powersavemodelauncher.BaseModelTestCase;
+import com.sprd.powersavemodelauncher.allapps.AlphabeticalAppsList.AdapterItem;
+import com.sprd.powersavemodelauncher.allapps.AlphabeticalAppsList.MergeAlgorithm;
+import com.sprd.powersavemodelauncher.allapps.AlphabeticalAppsList.SectionInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link AlphabeticalAppsList#mergeSections} merges random lists of sections exactly
+ * as the previous algorithm, which removed the merged section breaks from the list one by one.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MergeSectionsTest extends BaseModelTestCase {
+
+    private static final int ITERATIONS = 500;
+    // Mixes ascii and non-ascii section names, which are not merged together.
+    private static final String[] SECTION_NAMES = {"A", "B", "C", "D", "E", "F", "G", "H",
+            "Б", "Г", "Д", "あ", "か", "さ", "#"};
+
+    @Test
+    public void testMatchesPreviousAlgorithm() {
+        Random random = new Random(19);
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            int numAppsPerRow = 3 + random.nextInt(4);
+            MergeAlgorithm algorithm = new SimpleSectionMergeAlgorithm(
+                    1 + random.nextInt(numAppsPerRow), 1 + random.nextInt(4),
+                    1 + random.nextInt(5));
+
+            // Section sizes, the first one may be the predictions
+            boolean hasPredictions = random.nextBoolean();
+            int numSections = random.nextInt(SECTION_NAMES.length + 1);
+            int[] sizes = new int[numSections];
+            List<AppInfo> apps = new ArrayList<>();
+            for (int i = 0; i < numSections; i++) {
+                sizes[i] = 1 + random.nextInt(2 * numAppsPerRow);
+                for (int j = 0; j < sizes[i]; j++) {
+                    apps.add(getInfo("app" + apps.size()));
+                }
+            }
+
+            List<SectionInfo> expectedSections = new ArrayList<>();
+            List<AdapterItem> expectedItems = new ArrayList<>();
+            build(sizes, hasPredictions, apps, expectedSections, expectedItems);
+            mergeSectionsPreviously(expectedSections, expectedItems, algorithm, numAppsPerRow);
+
+            List<SectionInfo> sections = new ArrayList<>();
+            List<AdapterItem> items = new ArrayList<>();
+            build(sizes, hasPredictions, apps, sections, items);
+            items = AlphabeticalAppsList.mergeSections(sections, items, algorithm, numAppsPerRow);
+
+            String message = "iteration " + iteration;
+            assertEquals(message, expectedSections.size(), sections.size());
+            for (int i = 0; i < sections.size(); i++) {
+                assertEquals(message, expectedSections.get(i).numApps, sections.get(i).numApps);
+            }
+            assertEquals(message, expectedItems.size(), items.size());
+            for (int i = 0; i < items.size(); i++) {
+                AdapterItem expected = expectedItems.get(i);
+                AdapterItem item = items.get(i);
+                String itemMessage = message + ", item " + i;
+                assertEquals(itemMessage, expected.viewType, item.viewType);
+                assertEquals(itemMessage, expected.position, item.position);
+                assertSame(itemMessage, expected.appInfo, item.appInfo);
+                assertEquals(itemMessage, expected.sectionName, item.sectionName);
+                assertEquals(itemMessage, expected.sectionAppIndex, item.sectionAppIndex);
+                assertEquals(itemMessage, expectedSections.indexOf(expected.sectionInfo),
+                        sections.indexOf(item.sectionInfo));
+            }
+        }
+    }
+
+    /**
+     * Builds the sections and items as {@link AlphabeticalAppsList} does before merging.
+     */
+    private static void build(int[] sizes, boolean hasPredictions, List<AppInfo> apps,
+            List<SectionInfo> outSections, List<AdapterItem> outItems) {
+        int position = 0;
+        int appIndex = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            boolean isPredictions = hasPredictions && i == 0;
+            String sectionName = isPredictions ? "" : SECTION_NAMES[i];
+            SectionInfo section = new SectionInfo();
+            outSections.add(section);
+            outItems.add(AdapterItem.asSectionBreak(position++, section));
+            for (int j = 0; j < sizes[i]; j++) {
+                AppInfo app = apps.get(appIndex);
+                AdapterItem item = isPredictions
+                        ? AdapterItem.asPredictedApp(position++, section, sectionName,
+                                section.numApps++, app, appIndex++)
+                        : AdapterItem.asApp(position++, section, sectionName,
+                                section.numApps++, app, appIndex++);
+                if (section.firstAppItem == null) {
+                    section.firstAppItem = item;
+                }
+                outItems.add(item);
+            }
+        }
+    }
+
+    /**
+     * The previous merging algorithm, quadratic in the number of apps.
+     */
+    private static void mergeSectionsPreviously(List<SectionInfo> sections,
+            List<AdapterItem> adapterItems, MergeAlgorithm mergeAlgorithm, int numAppsPerRow) {
+        int sectionAppCount = 0;
+        for (int i = 0; i < sections.size() - 1; i++) {
+            SectionInfo section = sections.get(i);
+            sectionAppCount = section.numApps;
+            int mergeCount = 1;
+
+            while (i < (sections.size() - 1) &&
+                    mergeAlgorithm.continueMerging(section, sections.get(i + 1),
+                            sectionAppCount, numAppsPerRow, mergeCount)) {
+                SectionInfo nextSection = sections.remove(i + 1);
+
+                adapterItems.remove(nextSection.sectionBreakItem);
+                int pos = adapterItems.indexOf(section.firstAppItem);
+
+                int nextPos = pos + section.numApps;
+                for (int j = nextPos; j < (nextPos + nextSection.numApps); j++) {
+                    AdapterItem item = adapterItems.get(j);
+                    item.sectionInfo = section;
+                    item.sectionAppIndex += section.numApps;
+                }
+
+                pos = adapterItems.indexOf(nextSection.firstAppItem);
+                for (int j = pos; j < adapterItems.size(); j++) {
+                    AdapterItem item = adapterItems.get(j);
+                    item.position--;
+                }
+                section.numApps += nextSection.numApps;
+                sectionAppCount += nextSection.numApps;
+                mergeCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.sprd.powersavemodelauncher.model;
+
+import android.util.Log;
+
+import com.sprd.powersavemodelauncher.AppInfo;
+import com.sprd.powersavemodelauncher.BaseModelTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares sorting apps with their precomputed sort keys with collating their titles on every
+ * comparison, as {@link AppNameComparator} did before. Results are written to the log with the
+ * tag below.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AppNameComparatorBenchmark extends BaseModelTestCase {
+    private static final String TAG = "AppNameComparatorBench";
+
+    private static final int NUM_APPS = 2000;
+    private static final int ITERATIONS = 10;
+
+    // Latin with accents, Greek, Cyrillic, Arabic, Hebrew, CJK, Hangul, digits and symbols.
+    private static final String[] ALPHABETS = {
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ",
+            "àáâäçèéêëìíîïñòóôöùúûüÀÉÖÜß",
+            "αβγδεζηθικλμνξοπρστυφχψω",
+            "абвгдеёжзийклмнопрстуфхцчшщыэюя",
+            "ابتثجحخدذرزسشصضطظعغفقكلمنهوي",
+            "אבגדהוזחטיכלמנסעפצקרשת",
+            "应用设置相机电话信息日历时钟音乐视频浏览器文件管理天气地图",
+            "가나다라마바사아자차카타파하",
+            "0123456789",
+            "!#$%&*+-._@~ ",
+    };
+
+    private AppNameComparator mComparator;
+    private final List<AppInfo> mApps = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        mComparator = new AppNameComparator(mTargetContext);
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_APPS; i++) {
+            StringBuilder title = new StringBuilder();
+            int length = 2 + random.nextInt(14);
+            for (int j = 0; j < length; j++) {
+                String alphabet = ALPHABETS[random.nextInt(ALPHABETS.length)];
+                title.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            mApps.add(getInfo(title.toString()));
+        }
+    }
+
+    @Test
+    public void testSortMatchesTitleOrder() {
+        final Collator collator = Collator.getInstance();
+        Comparator<AppInfo> titleComparator = new Comparator<AppInfo>() {
+            @Override
+            public int compare(AppInfo a, AppInfo b) {
+                String titleA = a.title.toString();
+                String titleB = b.title.toString();
+                boolean aStartsWithLetter = titleA.length() > 0
+                        && Character.isLetterOrDigit(titleA.codePointAt(0));
+                boolean bStartsWithLetter = titleB.length() > 0
+                        && Character.isLetterOrDigit(titleB.codePointAt(0));
+                if (aStartsWithLetter != bStartsWithLetter) {
+                    return aStartsWithLetter ? -1 : 1;
+                }
+                int result = collator.compare(titleA, titleB);
+                return result != 0 ? result : a.componentName.compareTo(b.componentName);
+            }
+        };
+
+        // The first sort also computes the keys.
+        long start = System.nanoTime();
+        List<AppInfo> sorted = sort(mComparator.getAppInfoComparator());
+        long firstSortNanos = System.nanoTime() - start;
+        List<AppInfo> expected = sort(titleComparator);
+        for (int i = 0; i < NUM_APPS; i++) {
+            assertSame("App " + i + " differs", expected.get(i), sorted.get(i));
+        }
+
+        long keyNanos = 0;
+        long titleNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            start = System.nanoTime();
+            sort(mComparator.getAppInfoComparator());
+            keyNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sort(titleComparator);
+            titleNanos += System.nanoTime() - start;
+        }
+        Log.i(TAG, "sorting " + NUM_APPS + " apps: titles " + titleNanos / ITERATIONS / 1000
+                + "us, sort keys " + keyNanos / ITERATIONS / 1000 + "us, first sort with keys "
+                + firstSortNanos / 1000 + "us");
+    }
+
+    private List<AppInfo> sort(Comparator<? super AppInfo> comparator) {
+        List<AppInfo> apps = new ArrayList<>(mApps);
+        Collections.shuffle(apps, new Random(7));
+        Collections.sort(apps, comparator);
+        return apps;
+    }
+}
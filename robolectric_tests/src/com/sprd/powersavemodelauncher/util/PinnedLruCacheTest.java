@@ -0,0 +1,114 @@
+package com.sprd.powersavemodelauncher.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PinnedLruCache}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PinnedLruCacheTest {
+
+    private PinnedLruCache<String, Integer> mCache;
+
+    @Before
+    public void setUp() {
+        // Each value is its own size.
+        mCache = new PinnedLruCache<String, Integer>(4, 10) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        mCache.put("a", 4);
+        mCache.put("b", 4);
+        mCache.get("a");
+        mCache.put("c", 4);
+
+        assertTrue(mCache.containsKey("a"));
+        assertFalse(mCache.containsKey("b"));
+        assertTrue(mCache.containsKey("c"));
+        assertEquals(8, mCache.size());
+        assertEquals(1, mCache.evictionCount());
+    }
+
+    @Test
+    public void testEvictsBelowMaxSize() {
+        for (String key : new String[] {"a", "b", "c", "d", "e", "f"}) {
+            mCache.put(key, 2);
+        }
+
+        // Trimmed to 90% of the max size at once
+        assertFalse(mCache.containsKey("a"));
+        assertFalse(mCache.containsKey("b"));
+        assertTrue(mCache.containsKey("c"));
+        assertEquals(8, mCache.size());
+        assertEquals(2, mCache.evictionCount());
+
+        mCache.put("g", 2);
+        assertEquals(10, mCache.size());
+        assertEquals(2, mCache.evictionCount());
+    }
+
+    @Test
+    public void testPinnedEntriesAreNotEvicted() {
+        mCache.setPinnedKeys(Collections.singletonList("a"));
+        mCache.put("a", 8);
+        mCache.put("b", 6);
+        mCache.put("c", 6);
+
+        assertTrue(mCache.containsKey("a"));
+        assertFalse(mCache.containsKey("b"));
+        assertTrue(mCache.containsKey("c"));
+        assertEquals(8, mCache.pinnedSize());
+        assertEquals(6, mCache.size());
+    }
+
+    @Test
+    public void testUnpinningMakesEntriesEvictable() {
+        mCache.setPinnedKeys(Arrays.asList("a", "b"));
+        mCache.put("a", 6);
+        mCache.put("b", 6);
+        assertEquals(0, mCache.size());
+
+        mCache.setPinnedKeys(Collections.<String>emptyList());
+        assertFalse(mCache.containsKey("a"));
+        assertTrue(mCache.containsKey("b"));
+        assertEquals(6, mCache.size());
+        assertEquals(0, mCache.pinnedSize());
+    }
+
+    @Test
+    public void testHitAndMissCounters() {
+        mCache.put("a", 1);
+        mCache.get("a");
+        assertNull(mCache.get("b"));
+
+        assertEquals(1, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test
+    public void testReplaceAndRemoveUpdateSize() {
+        mCache.put("a", 3);
+        mCache.put("a", 5);
+        assertEquals(5, mCache.size());
+
+        assertEquals(Integer.valueOf(5), mCache.remove("a"));
+        assertEquals(0, mCache.size());
+    }
+}
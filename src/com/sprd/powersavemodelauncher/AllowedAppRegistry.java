@@ -0,0 +1,286 @@
+package com.sprd.powersavemodelauncher;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.sprd.PlatformHelper;
+import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
+import com.sprd.powersavemodelauncher.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The apps allowed in ultra power saving mode, which are the apps shown on the workspace.
+ *
+ * The platform keeps them as "component#slot#userSerial" strings. They are fetched and parsed
+ * once into {@link AllowedApp} records, indexed by slot, by {@link ComponentKey} and by package.
+ * The records are fetched again only after the launcher writes the list through this class, or
+ * after {@link #invalidate()} when the list may have been changed by the platform.
+ *
+ * Whether the activity of a record can be started is also checked once, until one of its
+ * packages changes.
+ */
+public class AllowedAppRegistry {
+    private static final String TAG = "PowerSaveLauncher.AllowedAppRegistry";
+
+    private static final String SEPARATOR = "#";
+
+    public static class AllowedApp {
+        public final int slot;
+        public final ComponentKey key;
+
+        // Null until checked.
+        Boolean mValid;
+
+        AllowedApp(int slot, ComponentKey key) {
+            this.slot = slot;
+            this.key = key;
+        }
+    }
+
+    private final Context mContext;
+
+    // In the order of the platform list, later records of a slot win over the earlier ones.
+    private final ArrayList<AllowedApp> mRecords = new ArrayList<>();
+    private final HashMap<Integer, AllowedApp> mBySlot = new HashMap<>();
+    private final HashMap<ComponentKey, ArrayList<AllowedApp>> mByKey = new HashMap<>();
+    private final HashMap<String, ArrayList<AllowedApp>> mByPackage = new HashMap<>();
+    private boolean mLoaded;
+
+    AllowedAppRegistry(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Makes the next read fetch the list from the platform again.
+     */
+    public synchronized void invalidate() {
+        mLoaded = false;
+    }
+
+    /**
+     * Forgets whether the activities of {@param packages} can be started, after they changed.
+     */
+    public synchronized void onPackagesChanged(String[] packages) {
+        if (!mLoaded) {
+            return;
+        }
+        for (String pkg : packages) {
+            ArrayList<AllowedApp> records = mByPackage.get(pkg);
+            if (records != null) {
+                for (AllowedApp record : records) {
+                    record.mValid = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets whether the activities of all the records can be started.
+     */
+    public synchronized void onUserAvailabilityChanged() {
+        for (AllowedApp record : mRecords) {
+            record.mValid = null;
+        }
+    }
+
+    /**
+     * @param validOnly whether to skip the apps which can't be started or are hidden.
+     * @return the allowed apps by slot.
+     */
+    public synchronized HashMap<Integer, ComponentKey> getSlotMap(boolean validOnly) {
+        ensureLoaded();
+        HashMap<Integer, ComponentKey> slots = new HashMap<>();
+        if (!validOnly) {
+            for (AllowedApp record : mBySlot.values()) {
+                slots.put(record.slot, record.key);
+            }
+            return slots;
+        }
+        for (AllowedApp record : mRecords) {
+            if (isValid(record)) {
+                slots.put(record.slot, record.key);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @return the slots of {@param key}, skipping the ones where it can't be started if
+     * {@param validOnly}.
+     */
+    public synchronized List<Integer> getSlots(ComponentKey key, boolean validOnly) {
+        ensureLoaded();
+        return collectSlots(mByKey.get(key), validOnly);
+    }
+
+    /**
+     * @return the allowed apps of {@param packageName} for {@param user}, by slot.
+     */
+    public synchronized HashMap<Integer, ComponentKey> getSlotMap(String packageName,
+            UserHandleCompat user) {
+        ensureLoaded();
+        HashMap<Integer, ComponentKey> slots = new HashMap<>();
+        ArrayList<AllowedApp> records = mByPackage.get(packageName);
+        if (records != null) {
+            for (AllowedApp record : records) {
+                if (record.key.user.equals(user) && mBySlot.get(record.slot) == record) {
+                    slots.put(record.slot, record.key);
+                }
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @return whether an app of {@param packageName}, for any user, is shown in a slot of the
+     * workspace.
+     */
+    public synchronized boolean containsValidPackage(String packageName) {
+        ensureLoaded();
+        ArrayList<AllowedApp> records = mByPackage.get(packageName);
+        if (records != null) {
+            for (AllowedApp record : records) {
+                if (getValidRecord(record.slot) == record) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the raw platform entries, in the platform order.
+     */
+    public synchronized List<String> getEntries() {
+        return new ArrayList<>(PlatformHelper.getAllowedAppListInUltraSavingMode(mContext));
+    }
+
+    public boolean add(int slot, ComponentName cn, UserHandleCompat user) {
+        return addEntry(toEntry(slot, cn, user));
+    }
+
+    public boolean remove(int slot, ComponentName cn, UserHandleCompat user) {
+        return removeEntry(toEntry(slot, cn, user));
+    }
+
+    public synchronized boolean addEntry(String value) {
+        if (PlatformHelper.addAllowedAppInUltraSavingMode(mContext, value)) {
+            mLoaded = false;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean removeEntry(String value) {
+        if (PlatformHelper.delAllowedAppInUltraSavingMode(mContext, value)) {
+            mLoaded = false;
+            return true;
+        }
+        return false;
+    }
+
+    private String toEntry(int slot, ComponentName cn, UserHandleCompat user) {
+        return cn.flattenToShortString() + SEPARATOR + slot
+                + SEPARATOR + Utilities.getUserSerialNumber(mContext, user);
+    }
+
+    private List<Integer> collectSlots(Collection<AllowedApp> records, boolean validOnly) {
+        ArrayList<Integer> slots = new ArrayList<>();
+        if (records != null) {
+            for (AllowedApp record : records) {
+                AllowedApp winner = validOnly
+                        ? getValidRecord(record.slot) : mBySlot.get(record.slot);
+                if (winner == record) {
+                    slots.add(record.slot);
+                }
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * @return the record shown in {@param slot}, the last one which can be started, or null.
+     */
+    private AllowedApp getValidRecord(int slot) {
+        for (int i = mRecords.size() - 1; i >= 0; i--) {
+            AllowedApp record = mRecords.get(i);
+            if (record.slot == slot && isValid(record)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid(AllowedApp record) {
+        if (record.mValid == null) {
+            ComponentName cn = record.key.componentName;
+            record.mValid = LauncherModel.isValidPackageActivity(mContext, cn, record.key.user)
+                    && !LauncherModel.mRemovedPackageList.contains(cn.getPackageName());
+        }
+        return record.mValid;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mRecords.clear();
+        mBySlot.clear();
+        mByKey.clear();
+        mByPackage.clear();
+
+        List<String> entries = getEntries();
+        for (String value : entries) {
+            String[] sArrays = value.split(SEPARATOR);
+            if (sArrays.length < 2) {
+                continue;
+            }
+            ComponentName componentName = ComponentName.unflattenFromString(sArrays[0]);
+            if (componentName == null) {
+                Log.w(TAG, "Skipping invalid allowed app " + value);
+                continue;
+            }
+            int slot = Integer.valueOf(sArrays[1]);
+            UserHandle user;
+            if (sArrays.length >= 3) {
+                user = Utilities.getUserHandleFromSerialNumber(mContext, Long.valueOf(sArrays[2]));
+            } else {
+                // Entries written before multi user support, add the user to them.
+                user = UserHandleCompat.myUserHandle().getUser();
+                if (PlatformHelper.delAllowedAppInUltraSavingMode(mContext, value)) {
+                    UserHandleCompat myUser = UserHandleCompat.myUserHandle();
+                    String addValue = value + SEPARATOR
+                            + Utilities.getUserSerialNumber(mContext, myUser);
+                    PlatformHelper.addAllowedAppInUltraSavingMode(mContext, addValue);
+                }
+            }
+            if (user == null) {
+                continue;
+            }
+
+            AllowedApp record = new AllowedApp(slot,
+                    new ComponentKey(componentName, UserHandleCompat.fromUser(user)));
+            mRecords.add(record);
+            mBySlot.put(slot, record);
+            addToIndex(mByKey, record.key, record);
+            addToIndex(mByPackage, componentName.getPackageName(), record);
+        }
+        mLoaded = true;
+    }
+
+    private static <K> void addToIndex(HashMap<K, ArrayList<AllowedApp>> index, K key,
+            AllowedApp record) {
+        ArrayList<AllowedApp> records = index.get(key);
+        if (records == null) {
+            records = new ArrayList<>();
+            index.put(key, records);
+        }
+        records.add(record);
+    }
+}
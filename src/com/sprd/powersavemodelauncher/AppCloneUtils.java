@@ -1,6 +1,7 @@
 package com.sprd.powersavemodelauncher;
 
 import android.os.UserHandle;
+import android.util.SparseBooleanArray;
 
 import java.lang.reflect.Method;
 
@@ -10,6 +11,8 @@ import java.lang.reflect.Method;
 public class AppCloneUtils {
     private static Class<?> mAppCloneUserInfoClass = null;
     private static Method mIsAppCloneUserMethod = null;
+    // Whether a user id is an app clone user doesn't change, cached as the lookup is reflective.
+    private static final SparseBooleanArray sAppCloneUsers = new SparseBooleanArray();
 
     private static Class<?> getAppCloneUserInfoClass() throws ClassNotFoundException {
         if (mAppCloneUserInfoClass == null) {
@@ -27,12 +30,22 @@ public class AppCloneUtils {
     }
 
     public static boolean isAppCloneUser(UserHandle user) {
+        int userId = user.hashCode();
+        synchronized (sAppCloneUsers) {
+            int index = sAppCloneUsers.indexOfKey(userId);
+            if (index >= 0) {
+                return sAppCloneUsers.valueAt(index);
+            }
+        }
         boolean ret = false;
         try {
-            ret = (boolean) getIsAppCloneUserMethod().invoke(null, user.hashCode());
+            ret = (boolean) getIsAppCloneUserMethod().invoke(null, userId);
         } catch (Exception ignored) {
         }
 
+        synchronized (sAppCloneUsers) {
+            sAppCloneUsers.put(userId, ret);
+        }
         return ret;
     }
 }
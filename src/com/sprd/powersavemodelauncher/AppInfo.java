@@ -16,12 +16,14 @@
 
 package com.sprd.powersavemodelauncher;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 
 import com.sprd.powersavemodelauncher.compat.LauncherActivityInfoCompat;
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
+import com.sprd.powersavemodelauncher.model.AppNameComparator;
 import com.sprd.powersavemodelauncher.util.ComponentKey;
 import com.sprd.powersavemodelauncher.util.PackageManagerHelper;
 
@@ -48,6 +50,11 @@ public class AppInfo extends ItemInfo {
 
     int flags = 0;
 
+    /**
+     * The key this app is sorted by in all apps, see {@link AppNameComparator}.
+     */
+    public AppNameComparator.SortKey sortKey;
+
     public static final int DEFAULT = 0;
     int isDisabled = DEFAULT;
 
@@ -126,9 +133,13 @@ public class AppInfo extends ItemInfo {
     public static Intent makeLaunchIntent(Context context, LauncherActivityInfoCompat info,
             UserHandleCompat user) {
         long serialNumber = UserManagerCompat.getInstance(context).getSerialNumberForUser(user);
+        return makeLaunchIntent(info.getComponentName(), serialNumber);
+    }
+
+    public static Intent makeLaunchIntent(ComponentName cn, long serialNumber) {
         return new Intent(Intent.ACTION_MAIN)
             .addCategory(Intent.CATEGORY_LAUNCHER)
-            .setComponent(info.getComponentName())
+            .setComponent(cn)
             .setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED)
             .putExtra(EXTRA_PROFILE, serialNumber);
     }
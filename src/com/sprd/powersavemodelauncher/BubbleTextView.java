@@ -325,12 +325,10 @@ public class BubbleTextView extends TextView
         }
 
         IconCache iconCache = LauncherAppState.getInstance(mPowerSaveLauncher).getIconCache();
-        synchronized (iconCache) {
-            if (getTag() instanceof AppInfo) {
-                AppInfo info = (AppInfo) getTag();
-                if (info.usingLowResIcon) {
-                    mIconLoadRequest = iconCache.updateIconInBackground(BubbleTextView.this, info);
-                }
+        if (getTag() instanceof AppInfo) {
+            AppInfo info = (AppInfo) getTag();
+            if (info.usingLowResIcon) {
+                mIconLoadRequest = iconCache.updateIconInBackground(BubbleTextView.this, info);
             }
         }
     }
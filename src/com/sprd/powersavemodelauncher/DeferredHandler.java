@@ -17,44 +17,48 @@
 package com.sprd.powersavemodelauncher;
 
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
-import android.os.MessageQueue;
+import android.view.Choreographer;
 
 import com.sprd.powersavemodelauncher.util.Thunk;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
 /**
- * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
- * be actually enqued on the handler until after the last one has run, to keep from
- * starving the thread.
+ * Queue of things to run on a looper thread.  Items posted with {@link #post} are run on the
+ * next frames of the thread, as many per frame as fit in {@link #FRAME_BUDGET_NANOS}, so that
+ * large binds neither starve the thread nor take one message per item.
+ *
+ * The items are also run by a message after {@link #FALLBACK_DELAY_MS}, in case no frame is
+ * coming, e.g. while the screen is off.
  *
  * This class is fifo.
  */
 public class DeferredHandler {
-    @Thunk
-    LinkedList<Runnable> mQueue = new LinkedList<>();
-    private Impl mHandler = new Impl();
+    // Leave the rest of the frame to the layout and the drawing of what was bound.
+    private static final long FRAME_BUDGET_NANOS = 8 * 1000 * 1000;
+    private static final long FALLBACK_DELAY_MS = 100;
+
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private final Impl mHandler = new Impl();
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private boolean mScheduled;
+
+    // Drain statistics, guarded by mQueue.
+    private int mFrames;
+    private long mRunnablesRun;
+    private int mMaxRunnablesPerFrame;
+    private long mMaxFrameNanos;
+    private int mMaxQueueDepth;
 
-    @Thunk class Impl extends Handler implements MessageQueue.IdleHandler {
+    @Thunk class Impl extends Handler implements Choreographer.FrameCallback {
         public void handleMessage(Message msg) {
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
-                }
-                r = mQueue.removeFirst();
-            }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
-            }
+            drain();
         }
 
-        public boolean queueIdle() {
-            handleMessage(null);
-            return false;
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drain();
         }
     }
 
@@ -65,9 +69,8 @@ public class DeferredHandler {
     public void post(Runnable runnable) {
         synchronized (mQueue) {
             mQueue.add(runnable);
-            if (mQueue.size() == 1) {
-                scheduleNextLocked();
-            }
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            scheduleNextLocked();
         }
     }
 
@@ -79,9 +82,9 @@ public class DeferredHandler {
 
     /** Runs all queued Runnables from the calling thread. */
     public void flush() {
-        LinkedList<Runnable> queue = new LinkedList<>();
+        Runnable[] queue;
         synchronized (mQueue) {
-            queue.addAll(mQueue);
+            queue = mQueue.toArray(new Runnable[mQueue.size()]);
             mQueue.clear();
         }
         for (Runnable r : queue) {
@@ -89,10 +92,66 @@ public class DeferredHandler {
         }
     }
 
+    /**
+     * @return the number of runnables waiting to run.
+     */
+    public int getQueueDepth() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    public String getStats() {
+        synchronized (mQueue) {
+            return "DeferredHandler: " + mRunnablesRun + " runnables in " + mFrames
+                    + " frames, max " + mMaxRunnablesPerFrame + " runnables and "
+                    + mMaxFrameNanos / 1000 + "us per frame, max queue depth " + mMaxQueueDepth
+                    + ", queued " + mQueue.size();
+        }
+    }
+
+    /**
+     * Runs the queued runnables until the frame budget is used, at least one.
+     */
+    @Thunk void drain() {
+        synchronized (mQueue) {
+            mScheduled = false;
+            mChoreographer.removeFrameCallback(mHandler);
+            mHandler.removeMessages(1);
+        }
+        final long start = System.nanoTime();
+        int count = 0;
+        while (true) {
+            Runnable r;
+            synchronized (mQueue) {
+                r = mQueue.poll();
+            }
+            if (r == null) {
+                break;
+            }
+            r.run();
+            count++;
+            if (System.nanoTime() - start >= FRAME_BUDGET_NANOS) {
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (mQueue) {
+            if (count > 0) {
+                mFrames++;
+                mRunnablesRun += count;
+                mMaxRunnablesPerFrame = Math.max(mMaxRunnablesPerFrame, count);
+                mMaxFrameNanos = Math.max(mMaxFrameNanos, elapsed);
+            }
+            scheduleNextLocked();
+        }
+    }
+
     void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
-            mHandler.sendEmptyMessage(1);
+        if (mQueue.size() > 0 && !mScheduled) {
+            mScheduled = true;
+            mChoreographer.postFrameCallback(mHandler);
+            mHandler.sendEmptyMessageDelayed(1, FALLBACK_DELAY_MS);
         }
     }
 }
-
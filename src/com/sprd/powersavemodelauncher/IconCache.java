@@ -16,11 +16,14 @@
 
 package com.sprd.powersavemodelauncher;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -38,8 +41,12 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
+import com.sprd.powersavemodelauncher.graphics.IconCodec;
+import com.sprd.powersavemodelauncher.graphics.BaseIconCache;
+import com.sprd.powersavemodelauncher.graphics.IconRenderPool;
 import com.sprd.powersavemodelauncher.graphics.LauncherIcons;
 
 import com.sprd.powersavemodelauncher.compat.LauncherActivityInfoCompat;
@@ -47,19 +54,38 @@ import com.sprd.powersavemodelauncher.compat.LauncherAppsCompat;
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
 import com.sprd.powersavemodelauncher.util.ComponentKey;
+import com.sprd.powersavemodelauncher.util.PinnedLruCache;
 import com.sprd.powersavemodelauncher.util.SQLiteCacheHelper;
 import com.sprd.powersavemodelauncher.util.Thunk;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Lookups of cached entries do not take any lock. Missing entries are loaded under a lock
+ * striped by key, so that loading one entry does not block the others, and icons are rendered
+ * and encoded outside of any cache wide lock.
  */
 public class IconCache {
 
@@ -73,29 +99,68 @@ public class IconCache {
     private static final boolean DEBUG = false;
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
+    private static final String LOW_RES_ATLAS_PREFIX = "app_icons_low_res_";
+
+    // Fraction of the heap the evictable icons may take, lower on low-ram devices.
+    private static final int MEM_CACHE_HEAP_DIVIDER = 8;
+    private static final int MEM_CACHE_HEAP_DIVIDER_LOW_RAM = 16;
+
+    // Number of striped locks used to load missing entries.
+    private static final int ENTRY_LOCK_STRIPES = 16;
 
     @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
 
+    // State of the DB after the last completed reconciliation, see updateDBIcons.
+    private static final String KEY_SYNC_BOOT_COUNT = "icon_db_sync_boot_count";
+    private static final String KEY_SYNC_SEQUENCE = "icon_db_sync_sequence";
+    private static final String KEY_SYNC_SYSTEM_STATE = "icon_db_sync_system_state";
+
+    /**
+     * An entry must not be modified once it is put in the cache, replace it with a new entry
+     * instead. This lets readers use it without any lock.
+     */
     @Thunk static class CacheEntry {
         public Bitmap icon;
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+        // The key of the icon in the interned icons, or 0 if the icon is not interned.
+        long iconKey;
     }
 
-    private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons = new HashMap<>();
+    private final ConcurrentHashMap<UserHandleCompat, Bitmap> mDefaultIcons =
+            new ConcurrentHashMap<>();
     @Thunk final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
     private final Context mContext;
     private final PackageManager mPackageManager;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final PinnedLruCache<ComponentKey, CacheEntry> mCache;
+    // Locks serializing the loading of missing entries. Package entries have their own stripes,
+    // which are only ever acquired after the component ones.
+    private final Object[] mEntryLocks = newLocks(ENTRY_LOCK_STRIPES);
+    private final Object[] mPackageEntryLocks = newLocks(ENTRY_LOCK_STRIPES);
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
+    private final IconCodec mIconCodec = IconCodec.DEFAULT;
+    // Low-res icon atlases keyed by user serial, or null if the atlas is disabled.
+    private final HashMap<Long, LowResIconAtlas> mLowResAtlases;
+    // The icon table generation the atlases belong to, guarded by mLowResAtlases.
+    private int mLowResAtlasGeneration;
+    private final int mLowResIconSize;
 
     @Thunk final Handler mWorkerHandler;
+    @Thunk final IconRenderPool mRenderPool;
+    private final BaseIconCache mBaseIcons;
+
+    // Icons in use keyed by the hash of their blob, see intern().
+    private final HashMap<Long, WeakReference<Bitmap>> mInternedIcons = new HashMap<>();
+    private int mInternPurgeThreshold = INITIAL_ICON_CACHE_CAPACITY;
+    private final AtomicInteger mInternHits = new AtomicInteger();
+    private final AtomicLong mInternSavedBytes = new AtomicLong();
+    // Time the icon update task may spend in one DB transaction before yielding.
+    @Thunk final long mIconUpdateBatchMillis;
 
     // The background color used for activity icons. Since these icons are displayed in all-apps
     // , this would be same as the light quantum panel background. This color
@@ -106,10 +171,11 @@ public class IconCache {
     private final int mPackageBgColor;
     private final BitmapFactory.Options mLowResOptions;
 
-    private String mSystemState;
-    private Bitmap mLowResBitmap;
-    private Canvas mLowResCanvas;
-    private Paint mLowResPaint;
+    private volatile String mSystemState;
+
+    // Number of queries issued against the icon DB, used by the loader to report how many
+    // per-component lookups were avoided by prefetching.
+    private final AtomicInteger mDbQueryCount = new AtomicInteger();
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
         mContext = context;
@@ -117,9 +183,16 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
-        mIconDb = new IconDB(context, inv.iconBitmapSize);
+        mIconDb = new IconDB(context, inv.iconBitmapSize, mIconCodec);
+        mLowResAtlases = context.getResources().getBoolean(R.bool.config_low_res_icon_atlas)
+                ? new HashMap<Long, LowResIconAtlas>() : null;
+        mLowResIconSize = inv.iconBitmapSize / LOW_RES_SCALE_FACTOR;
+        mCache = new EntryCache(getMemCacheMaxSize(context));
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mRenderPool = new IconRenderPool(context);
+        mBaseIcons = new BaseIconCache(context);
+        mIconUpdateBatchMillis = context.getResources().getInteger(R.integer.icon_update_batch_millis);
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         mPackageBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color_dark);
@@ -130,6 +203,140 @@ public class IconCache {
         updateSystemStateString();
     }
 
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+
+    private static Object getLock(Object[] locks, ComponentKey key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static long getMemCacheMaxSize(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int divider = am != null && am.isLowRamDevice()
+                ? MEM_CACHE_HEAP_DIVIDER_LOW_RAM : MEM_CACHE_HEAP_DIVIDER;
+        return Runtime.getRuntime().maxMemory() / divider;
+    }
+
+    /**
+     * Memory cache of the entries, bounded by the byte size of their icons. Entries of the
+     * workspace items are pinned, all other entries are evicted in LRU order. An evicted entry
+     * is read again from the DB on its next use, falling back to the low-res icon wherever the
+     * caller accepts it.
+     */
+    private class EntryCache extends PinnedLruCache<ComponentKey, CacheEntry> {
+
+        EntryCache(long maxSize) {
+            super(INITIAL_ICON_CACHE_CAPACITY, maxSize);
+        }
+
+        @Override
+        protected int sizeOf(ComponentKey key, CacheEntry entry) {
+            // The default icons are always held by mDefaultIcons. An interned icon is charged to
+            // every entry using it, as it stays in memory as long as any of them is cached.
+            if (entry.icon == null || mDefaultIcons.containsValue(entry.icon)) {
+                return 0;
+            }
+            return entry.icon.getByteCount();
+        }
+
+        @Override
+        public void put(ComponentKey key, CacheEntry entry) {
+            intern(entry);
+            super.put(key, entry);
+        }
+
+        @Override
+        public boolean putIfAbsent(ComponentKey key, CacheEntry entry) {
+            intern(entry);
+            return super.putIfAbsent(key, entry);
+        }
+    }
+
+    /**
+     * @return the intern key of an icon read from the blob with {@param blobHash}.
+     */
+    private static long getBlobIconKey(long blobHash, boolean lowRes) {
+        // The high-res and low-res icons of a blob share its hash.
+        return blobHash * 2 + (lowRes ? 1 : 0);
+    }
+
+    /**
+     * Replaces the icon of {@param entry} with a bitmap with the same pixels if one is already
+     * in use, so that activities sharing an icon, e.g. in the same package or in several
+     * profiles, share one bitmap. Otherwise the icon is shared with the next entries.
+     *
+     * Only the entries with an {@link CacheEntry#iconKey}, set when the icon is read from or
+     * written to a blob, are interned.
+     */
+    @Thunk void intern(CacheEntry entry) {
+        Bitmap icon = entry.icon;
+        if (icon == null || entry.iconKey == 0 || mDefaultIcons.containsValue(icon)) {
+            return;
+        }
+        synchronized (mInternedIcons) {
+            WeakReference<Bitmap> ref = mInternedIcons.get(entry.iconKey);
+            Bitmap interned = ref == null ? null : ref.get();
+            if (interned != null) {
+                if (interned != icon && interned.sameAs(icon)) {
+                    mInternHits.incrementAndGet();
+                    mInternSavedBytes.addAndGet(icon.getByteCount());
+                    entry.icon = interned;
+                }
+                // Otherwise the same icon, or a hash collision which is left unshared.
+                return;
+            }
+            if (mInternedIcons.size() >= mInternPurgeThreshold) {
+                // Drop the icons which are no longer used.
+                Iterator<WeakReference<Bitmap>> it = mInternedIcons.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().get() == null) {
+                        it.remove();
+                    }
+                }
+                mInternPurgeThreshold = Math.max(INITIAL_ICON_CACHE_CAPACITY,
+                        mInternedIcons.size() * 2);
+            }
+            mInternedIcons.put(entry.iconKey, new WeakReference<>(icon));
+        }
+    }
+
+    /**
+     * Pins the entries of the provided components in memory, so that they are never evicted.
+     * Replaces any previously pinned components.
+     */
+    public void setPinnedComponents(Collection<ComponentKey> keys) {
+        mCache.setPinnedKeys(keys);
+    }
+
+    /**
+     * Drops the unbadged icons kept to badge them for other users, see {@link BaseIconCache}.
+     */
+    public void clearBaseIcons() {
+        mBaseIcons.clear();
+    }
+
+    /**
+     * @return a summary of the memory cache size and hit/miss/eviction counters.
+     */
+    public String getMemCacheStats() {
+        return mCache.toString();
+    }
+
+    /**
+     * @return how much memory and DB space sharing identical icons saved. Should not be called
+     * on the main thread, as it queries the DB.
+     */
+    public String getDedupStats() {
+        return String.format(Locale.ENGLISH,
+                "Icon dedup: %d bitmaps shared, %d bytes saved in memory, %d bytes saved in DB",
+                mInternHits.get(), mInternSavedBytes.get(), mIconDb.getSharedBlobSavings());
+    }
+
     private Drawable getFullResDefaultActivityIcon() {
         return getFullResIcon(Resources.getSystem(), android.R.mipmap.sym_def_app_icon);
     }
@@ -153,14 +360,14 @@ public class IconCache {
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
+    public void remove(ComponentName componentName, UserHandleCompat user) {
         mCache.remove(new ComponentKey(componentName, user));
     }
 
     /**
      * Remove any records for the supplied package name from memory.
      */
-    private void removeFromMemCacheLocked(String packageName, UserHandleCompat user) {
+    private void removeFromMemCache(String packageName, UserHandleCompat user) {
         HashSet<ComponentKey> forDeletion = new HashSet<ComponentKey>();
         for (ComponentKey key: mCache.keySet()) {
             if (key.componentName.getPackageName().equals(packageName)
@@ -176,7 +383,7 @@ public class IconCache {
     /**
      * Updates the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void updateIconsForPkg(String packageName, UserHandleCompat user) {
+    public void updateIconsForPkg(String packageName, UserHandleCompat user) {
         removeIconsForPkg(packageName, user);
         try {
             PackageInfo info = mPackageManager.getPackageInfo(packageName,
@@ -194,12 +401,18 @@ public class IconCache {
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void removeIconsForPkg(String packageName, UserHandleCompat user) {
-        removeFromMemCacheLocked(packageName, user);
+    public void removeIconsForPkg(String packageName, UserHandleCompat user) {
+        removeFromMemCache(packageName, user);
         long userSerial = mUserManager.getSerialNumberForUser(user);
-        mIconDb.delete(
-                IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
-                new String[]{packageName + "/%", Long.toString(userSerial)});
+        LowResIconAtlas atlas = getLowResAtlas(userSerial);
+        if (atlas != null) {
+            atlas.releasePackage(packageName);
+        }
+        String selection = IconDB.COLUMN_PACKAGE + " = ? AND " + IconDB.COLUMN_USER + " = ?";
+        String[] selectionArgs = new String[]{packageName, Long.toString(userSerial)};
+        HashSet<Long> iconHashes = mIconDb.getIconHashes(selection, selectionArgs);
+        mIconDb.delete(selection, selectionArgs);
+        mIconDb.deleteUnusedBlobs(iconHashes);
     }
 
     public void updateDbIcons() {
@@ -224,48 +437,137 @@ public class IconCache {
     /**
      * Updates the persistent DB, such that only entries corresponding to {@param apps} remain in
      * the DB and are updated.
-     * @return The set of packages for which icons have updated.
+     *
+     * Only the packages which changed since the last reconciliation are checked, as reported by
+     * {@link PackageManager#getChangedPackages}. The sequence number is reset on boot, in which
+     * case, or if the system state changed, every package is checked.
      */
     private void updateDBIcons(UserHandleCompat user, List<LauncherActivityInfoCompat> apps,
             Set<String> ignorePackages) {
         long userSerial = mUserManager.getSerialNumberForUser(user);
         PackageManager pm = mContext.getPackageManager();
+        final SharedPreferences prefs = Utilities.getDevicePrefs(mContext);
+        final int bootCount = getBootCount();
+        final String systemState = mSystemState;
+        final int tableGeneration = mIconDb.getTableGeneration();
+
         HashMap<String, PackageInfo> pkgInfoMap = new HashMap<String, PackageInfo>();
-        for (PackageInfo info : pm.getInstalledPackages(PackageManager.GET_UNINSTALLED_PACKAGES)) {
-            pkgInfoMap.put(info.packageName, info);
+        // Packages to check, or null to check all of them.
+        HashSet<String> changedPackages = null;
+        final int sequence;
+        if (bootCount >= 0 && bootCount == prefs.getInt(KEY_SYNC_BOOT_COUNT, -1)
+                && TextUtils.equals(systemState, prefs.getString(KEY_SYNC_SYSTEM_STATE, null))) {
+            int lastSequence = prefs.getInt(KEY_SYNC_SEQUENCE, 0);
+            ChangedPackages changes = pm.getChangedPackages(lastSequence);
+            changedPackages = new HashSet<>();
+            if (changes != null) {
+                sequence = changes.getSequenceNumber();
+                changedPackages.addAll(changes.getPackageNames());
+            } else {
+                sequence = lastSequence;
+            }
+            for (String packageName : changedPackages) {
+                try {
+                    pkgInfoMap.put(packageName, pm.getPackageInfo(packageName,
+                            PackageManager.GET_UNINSTALLED_PACKAGES));
+                } catch (NameNotFoundException e) {
+                    // Package was removed, its icons are removed below.
+                }
+            }
+        } else {
+            // Read the sequence before scanning, so that changes made during the scan are
+            // checked again next time.
+            ChangedPackages changes = pm.getChangedPackages(0);
+            sequence = changes == null ? 0 : changes.getSequenceNumber();
+            for (PackageInfo info :
+                    pm.getInstalledPackages(PackageManager.GET_UNINSTALLED_PACKAGES)) {
+                pkgInfoMap.put(info.packageName, info);
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "updateDBIcons: " + (changedPackages == null
+                    ? "full scan" : changedPackages.size() + " changed packages"));
         }
 
-        HashMap<ComponentName, LauncherActivityInfoCompat> componentMap = new HashMap<>();
+        final Runnable saveSyncState = new Runnable() {
+            @Override
+            public void run() {
+                if (tableGeneration != mIconDb.getTableGeneration()) {
+                    // The table was recreated meanwhile, the state no longer describes it.
+                    return;
+                }
+                prefs.edit()
+                        .putInt(KEY_SYNC_BOOT_COUNT, bootCount)
+                        .putInt(KEY_SYNC_SEQUENCE, sequence)
+                        .putString(KEY_SYNC_SYSTEM_STATE, systemState)
+                        .apply();
+            }
+        };
+        if (changedPackages != null && changedPackages.isEmpty()) {
+            // Nothing changed since the last reconciliation.
+            saveSyncState.run();
+            return;
+        }
+
+        // Keyed by flattened component, so that rows do not need to be parsed.
+        HashMap<String, LauncherActivityInfoCompat> componentMap = new HashMap<>();
         for (LauncherActivityInfoCompat app : apps) {
-            componentMap.put(app.getComponentName(), app);
+            if (changedPackages == null
+                    || changedPackages.contains(app.getComponentName().getPackageName())) {
+                componentMap.put(app.getComponentName().flattenToString(), app);
+            }
         }
 
         HashSet<Integer> itemsToRemove = new HashSet<Integer>();
+        // Blobs of the removed and updated rows, which may no longer be used afterwards.
+        HashSet<Long> removedIconHashes = new HashSet<>();
+        HashSet<Long> updatedIconHashes = new HashSet<>();
         Stack<LauncherActivityInfoCompat> appsToUpdate = new Stack<>();
+        // Saved normalization of the apps to update, keyed by flattened component.
+        HashMap<String, LauncherIcons.Normalization> normalizations = new HashMap<>();
 
         Cursor c = null;
         try {
+            String selection = IconDB.COLUMN_USER + " = ? ";
+            ArrayList<String> selectionArgs = new ArrayList<>();
+            selectionArgs.add(Long.toString(userSerial));
+            if (changedPackages != null) {
+                // Uses the (profileId, packageName) index.
+                selection += " AND " + IconDB.COLUMN_PACKAGE + " IN ("
+                        + TextUtils.join(", ", Collections.nCopies(changedPackages.size(), "?"))
+                        + ")";
+                selectionArgs.addAll(changedPackages);
+            }
             c = mIconDb.query(
                     new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_COMPONENT,
-                            IconDB.COLUMN_LAST_UPDATED, IconDB.COLUMN_VERSION,
-                            IconDB.COLUMN_SYSTEM_STATE},
-                    IconDB.COLUMN_USER + " = ? ",
-                    new String[]{Long.toString(userSerial)});
+                            IconDB.COLUMN_PACKAGE, IconDB.COLUMN_LAST_UPDATED,
+                            IconDB.COLUMN_VERSION, IconDB.COLUMN_SYSTEM_STATE,
+                            IconDB.COLUMN_ICON_SCALE, IconDB.COLUMN_ICON_MASK_SCALE,
+                            IconDB.COLUMN_ICON_IS_SHAPE, IconDB.COLUMN_ICON_HASH},
+                    selection,
+                    selectionArgs.toArray(new String[selectionArgs.size()]));
 
             final int indexComponent = c.getColumnIndex(IconDB.COLUMN_COMPONENT);
+            final int indexPackage = c.getColumnIndex(IconDB.COLUMN_PACKAGE);
             final int indexLastUpdate = c.getColumnIndex(IconDB.COLUMN_LAST_UPDATED);
             final int indexVersion = c.getColumnIndex(IconDB.COLUMN_VERSION);
             final int rowIndex = c.getColumnIndex(IconDB.COLUMN_ROWID);
             final int systemStateIndex = c.getColumnIndex(IconDB.COLUMN_SYSTEM_STATE);
+            final int indexScale = c.getColumnIndex(IconDB.COLUMN_ICON_SCALE);
+            final int indexMaskScale = c.getColumnIndex(IconDB.COLUMN_ICON_MASK_SCALE);
+            final int indexIsShape = c.getColumnIndex(IconDB.COLUMN_ICON_IS_SHAPE);
+            final int indexIconHash = c.getColumnIndex(IconDB.COLUMN_ICON_HASH);
 
             while (c.moveToNext()) {
                 String cn = c.getString(indexComponent);
-                ComponentName component = ComponentName.unflattenFromString(cn);
-                PackageInfo info = pkgInfoMap.get(component.getPackageName());
+                String packageName = c.getString(indexPackage);
+                PackageInfo info = pkgInfoMap.get(packageName);
                 if (info == null) {
-                    if (!ignorePackages.contains(component.getPackageName())) {
-                        remove(component, user);
+                    if (!ignorePackages.contains(packageName)) {
+                        removeRow(cn, user);
+                        releaseLowResSlot(cn, userSerial);
                         itemsToRemove.add(c.getInt(rowIndex));
+                        addIconHash(c, indexIconHash, removedIconHashes);
                     }
                     continue;
                 }
@@ -276,16 +578,29 @@ public class IconCache {
 
                 long updateTime = c.getLong(indexLastUpdate);
                 int version = c.getInt(indexVersion);
-                LauncherActivityInfoCompat app = componentMap.remove(component);
-                if (version == info.versionCode && updateTime == info.lastUpdateTime &&
-                        TextUtils.equals(mSystemState, c.getString(systemStateIndex))) {
+                LauncherActivityInfoCompat app = componentMap.remove(cn);
+                boolean samePackage =
+                        version == info.versionCode && updateTime == info.lastUpdateTime;
+                if (samePackage && TextUtils.equals(mSystemState, c.getString(systemStateIndex))) {
                     continue;
                 }
                 if (app == null) {
-                    remove(component, user);
+                    removeRow(cn, user);
+                    releaseLowResSlot(cn, userSerial);
                     itemsToRemove.add(c.getInt(rowIndex));
+                    addIconHash(c, indexIconHash, removedIconHashes);
                 } else {
                     appsToUpdate.add(app);
+                    addIconHash(c, indexIconHash, updatedIconHashes);
+                    // The drawable is the same if the package is, only the label changed.
+                    if (samePackage && !c.isNull(indexScale) && !c.isNull(indexMaskScale)) {
+                        LauncherIcons.Normalization normalization =
+                                new LauncherIcons.Normalization();
+                        normalization.scale = c.getFloat(indexScale);
+                        normalization.maskScale = c.getFloat(indexMaskScale);
+                        normalization.isShape = c.getInt(indexIsShape) != 0;
+                        normalizations.put(cn, normalization);
+                    }
                 }
             }
         } catch (SQLiteException e) {
@@ -299,14 +614,49 @@ public class IconCache {
         if (!itemsToRemove.isEmpty()) {
             mIconDb.delete(
                     Utilities.createDbSelectionQuery(IconDB.COLUMN_ROWID, itemsToRemove), null);
+            mIconDb.deleteUnusedBlobs(removedIconHashes);
         }
 
         // Insert remaining apps.
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfoCompat> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
-                    appsToAdd, appsToUpdate).scheduleNext();
+            // Only save the state once all the icons are in the DB, so that work which is lost
+            // if the process dies is done again.
+            new SerializedIconUpdateTask(userSerial, pkgInfoMap, appsToAdd, appsToUpdate,
+                    normalizations, updatedIconHashes, saveSyncState).scheduleNext();
+        } else {
+            saveSyncState.run();
+        }
+    }
+
+    private static void addIconHash(Cursor c, int indexIconHash, HashSet<Long> iconHashes) {
+        if (!c.isNull(indexIconHash)) {
+            iconHashes.add(c.getLong(indexIconHash));
+        }
+    }
+
+    private int getBootCount() {
+        return Settings.Global.getInt(mContext.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+    }
+
+    /**
+     * Forgets the last reconciliation, so that the next one checks every package. Must be called
+     * whenever the icon table is recreated.
+     */
+    static void clearSyncState(Context context) {
+        // Committed synchronously, a stale state would leave the new table empty.
+        Utilities.getDevicePrefs(context).edit()
+                .remove(KEY_SYNC_BOOT_COUNT)
+                .remove(KEY_SYNC_SEQUENCE)
+                .remove(KEY_SYNC_SYSTEM_STATE)
+                .commit();
+    }
+
+    private void removeRow(String cn, UserHandleCompat user) {
+        ComponentName component = ComponentName.unflattenFromString(cn);
+        if (component != null) {
+            remove(component, user);
         }
     }
 
@@ -314,7 +664,7 @@ public class IconCache {
             long userSerial) {
         // Reuse the existing entry if it already exists in the DB. This ensures that we do not
         // create bitmap if it was already created during loader.
-        ContentValues values = updateCacheAndGetContentValues(app, false);
+        ContentValues values = updateCacheAndGetContentValues(app, false, null);
         addIconToDB(values, app.getComponentName(), info, userSerial);
     }
 
@@ -322,36 +672,54 @@ public class IconCache {
      * Updates {@param values} to contain versoning information and adds it to the DB.
      * @param values {@link ContentValues} containing icon & title
      */
-    private void addIconToDB(ContentValues values, ComponentName key,
+    @Thunk void addIconToDB(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
+        values.put(IconDB.COLUMN_PACKAGE, key.getPackageName());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
         mIconDb.insertOrReplace(values);
     }
 
+    /**
+     * @param normalization the saved normalization of the app icon, or null to compute it.
+     */
     @Thunk ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
-            boolean replaceExisting) {
+            boolean replaceExisting, LauncherIcons.Normalization normalization) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = null;
+        if (normalization == null) {
+            normalization = new LauncherIcons.Normalization();
+        }
+        CacheEntry entry = new CacheEntry();
         if (!replaceExisting) {
-            entry = mCache.get(key);
+            CacheEntry existing = mCache.get(key);
             // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
+            if (existing != null && !existing.isLowResIcon && existing.icon != null) {
+                entry.icon = existing.icon;
             }
         }
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.icon = LauncherIcons.createBadgedIconBitmap(
-                    app.getIcon(mIconDpi), app.getUser(), mContext,app.getApplicationInfo().targetSdkVersion);
+        if (entry.icon == null) {
+            entry.icon = mBaseIcons.createBadgedIconBitmap(app, mIconDpi, normalization);
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
 
-        return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor);
+        ContentValues values =
+                newContentValues(entry.icon, entry.title.toString(), mActivityBgColor, key);
+        // Key the icon by the hash of its blob, as the next reads from the DB will.
+        entry.iconKey = getBlobIconKey(values.getAsLong(IconDB.COLUMN_ICON_HASH), false);
+        mCache.put(key, entry);
+        if (normalization.isValid()) {
+            values.put(IconDB.COLUMN_ICON_SCALE, normalization.scale);
+            values.put(IconDB.COLUMN_ICON_MASK_SCALE, normalization.maskScale);
+            values.put(IconDB.COLUMN_ICON_IS_SHAPE, normalization.isShape ? 1 : 0);
+        } else {
+            // The icon was reused from memory, the saved normalization may be stale.
+            values.putNull(IconDB.COLUMN_ICON_SCALE);
+            values.putNull(IconDB.COLUMN_ICON_MASK_SCALE);
+        }
+        return values;
     }
 
     /**
@@ -383,7 +751,7 @@ public class IconCache {
         return entry.icon == null ? getDefaultIcon(user) : entry.icon;
     }
 
-    public synchronized void getTitleAndIcon(ItemInfo itemInfo, ComponentName component, UserHandleCompat user) {
+    public void getTitleAndIcon(ItemInfo itemInfo, ComponentName component, UserHandleCompat user) {
         if (component == null) {
             itemInfo.iconBitmap = getDefaultIcon(user);
             itemInfo.title = "";
@@ -401,10 +769,10 @@ public class IconCache {
         }
     }
 
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ItemInfo itemInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+        CacheEntry entry = getEntry(component, info, user, usePkgIcon, useLowResIcon);
         itemInfo.iconBitmap = getNonNullIcon(entry, user);
         itemInfo.title = Utilities.trim(entry.title);
         itemInfo.componentName = component;
@@ -413,10 +781,10 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
+    public void getTitleAndIcon(AppInfo application,
             LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
+        CacheEntry entry = getEntry(application.componentName, info, user,
                 false, useLowResIcon);
         application.title = Utilities.trim(entry.title);
         application.iconBitmap = getNonNullIcon(entry, user);
@@ -427,8 +795,8 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
-        CacheEntry entry = cacheLocked(application.componentName, null, application.user,
+    public void updateTitleAndIcon(AppInfo application) {
+        CacheEntry entry = getEntry(application.componentName, null, application.user,
                 false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.title = Utilities.trim(entry.title);
@@ -438,37 +806,69 @@ public class IconCache {
         }
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    /**
+     * Sets the icon of {@param info} from the memory cache or the icon DB only, without resolving
+     * its activity. Nothing is cached if the component is not in the DB.
+     * @return false if the component is not cached.
+     */
+    public boolean getCachedIcon(ItemInfo info, boolean useLowResIcon) {
+        ComponentKey cacheKey = new ComponentKey(info.componentName, info.user);
+        CacheEntry entry = mCache.get(cacheKey);
+        if (!isUsable(entry, useLowResIcon)) {
+            entry = new CacheEntry();
+            if (!getEntryFromDB(cacheKey, entry, useLowResIcon) || entry.icon == null) {
+                return false;
+            }
+            mCache.putIfAbsent(cacheKey, entry);
         }
-        return mDefaultIcons.get(user);
+        info.iconBitmap = getNonNullIcon(entry, info.user);
+        info.usingLowResIcon = entry.isLowResIcon;
+        return true;
+    }
+
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        Bitmap icon = mDefaultIcons.get(user);
+        if (icon == null) {
+            mDefaultIcons.putIfAbsent(user, makeDefaultIcon(user));
+            icon = mDefaultIcons.get(user);
+        }
+        return icon;
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandleCompat user) {
         return mDefaultIcons.get(user) == icon;
     }
 
+    private static boolean isUsable(CacheEntry entry, boolean useLowResIcon) {
+        return entry != null && (useLowResIcon || !entry.isLowResIcon);
+    }
+
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
+    private CacheEntry getEntry(ComponentName componentName, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePackageIcon, boolean useLowResIcon) {
         ComponentKey cacheKey = new ComponentKey(componentName, user);
         CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        if (isUsable(entry, useLowResIcon)) {
+            return entry;
+        }
+        synchronized (getLock(mEntryLocks, cacheKey)) {
+            // Another thread may have loaded the entry in the meantime.
+            entry = mCache.get(cacheKey);
+            if (isUsable(entry, useLowResIcon)) {
+                return entry;
+            }
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
                 if (info != null) {
-                    entry.icon = LauncherIcons.createBadgedIconBitmap(
-                            info.getIcon(mIconDpi), info.getUser(), mContext,info.getApplicationInfo().targetSdkVersion);
+                    // Not interned until it is written to the DB, which keys it by its blob.
+                    entry.icon = mBaseIcons.createBadgedIconBitmap(info, mIconDpi, null);
                 } else {
                     if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
+                        CacheEntry packageEntry = getEntryForPackage(
                                 componentName.getPackageName(), user, false);
                         if (packageEntry != null) {
                             if (DEBUG) Log.d(TAG, "using package default icon for " +
@@ -490,25 +890,30 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            // Only put the entry once the icon is known, as the cache accounts for its size.
+            mCache.put(cacheKey, entry);
+            return entry;
         }
-        return entry;
     }
 
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
      */
-    public synchronized void cachePackageInstallInfo(String packageName, UserHandleCompat user,
+    public void cachePackageInstallInfo(String packageName, UserHandleCompat user,
             Bitmap icon, CharSequence title) {
-        removeFromMemCacheLocked(packageName, user);
+        removeFromMemCache(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        CacheEntry existing = mCache.get(cacheKey);
 
         // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
+        CacheEntry entry = new CacheEntry();
+        if (existing != null) {
+            entry.icon = existing.icon;
+            entry.title = existing.title;
+            entry.contentDescription = existing.contentDescription;
+            entry.isLowResIcon = existing.isLowResIcon;
         }
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
@@ -516,6 +921,7 @@ public class IconCache {
         if (icon != null) {
             entry.icon = LauncherIcons.createIconBitmap(icon, mContext);
         }
+        mCache.put(cacheKey, entry);
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandleCompat user) {
@@ -525,14 +931,20 @@ public class IconCache {
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
-    private CacheEntry getEntryForPackageLocked(String packageName, UserHandleCompat user,
+    private CacheEntry getEntryForPackage(String packageName, UserHandleCompat user,
             boolean useLowResIcon) {
         ComponentKey cacheKey = getPackageKey(packageName, user);
         CacheEntry entry = mCache.get(cacheKey);
+        if (isUsable(entry, useLowResIcon)) {
+            return entry;
+        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        synchronized (getLock(mPackageEntryLocks, cacheKey)) {
+            entry = mCache.get(cacheKey);
+            if (isUsable(entry, useLowResIcon)) {
+                return entry;
+            }
             entry = new CacheEntry();
             boolean entryUpdated = true;
 
@@ -555,7 +967,8 @@ public class IconCache {
                     // Add the icon in the DB here, since these do not get written during
                     // package updates.
                     ContentValues values =
-                            newContentValues(entry.icon, entry.title.toString(), mPackageBgColor);
+                            newContentValues(entry.icon, entry.title.toString(), mPackageBgColor,
+                                    cacheKey);
                     addIconToDB(values, cacheKey.componentName, info,
                             mUserManager.getSerialNumberForUser(user));
 
@@ -597,26 +1010,192 @@ public class IconCache {
         return false;
     }
 
-    private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+    /**
+     * Loads the low-res icon and label of every component cached for {@param user} using a
+     * single cursor pass, so that building the all-apps list does not need one DB query per app.
+     * Components which are already present in the memory cache are left untouched.
+     * @return the number of entries added to the memory cache.
+     */
+    public int prefetchLowResIcons(UserHandleCompat user) {
+        int prefetched = 0;
+        long userSerial = mUserManager.getSerialNumberForUser(user);
+        // With the atlas, icons are copied out of the mapped file and the blobs are not read.
+        LowResIconAtlas atlas = getLowResAtlas(userSerial);
+        Cursor c = null;
+        try {
+            mDbQueryCount.incrementAndGet();
+            c = mIconDb.rawQuery(
+                    atlas != null ? IconDB.PREFETCH_ATLAS_SQL : IconDB.PREFETCH_LOW_RES_SQL,
+                    new String[]{Long.toString(userSerial)});
+
+            final int indexComponent = 0;
+            final int indexIcon = 1;
+            final int indexLabel = 2;
+            final int indexIconHash = 3;
+
+            while (c.moveToNext()) {
+                String cn = c.getString(indexComponent);
+                ComponentName component = ComponentName.unflattenFromString(cn);
+                if (component == null) {
+                    continue;
+                }
+                ComponentKey cacheKey = new ComponentKey(component, user);
+                if (mCache.containsKey(cacheKey)) {
+                    // Avoid copying or decoding an icon which is already cached.
+                    continue;
+                }
+                Bitmap icon;
+                if (atlas != null) {
+                    icon = c.isNull(indexIcon) || c.isNull(indexIconHash) ? null
+                            : atlas.read(c.getInt(indexIcon), c.getLong(indexIconHash));
+                } else {
+                    icon = loadIconNoResize(c, indexIcon, mLowResOptions);
+                }
+                if (icon == null) {
+                    // Let the regular lookup regenerate the icon.
+                    continue;
+                }
+                CacheEntry entry = new CacheEntry();
+                entry.icon = icon;
+                entry.isLowResIcon = true;
+                if (!c.isNull(indexIconHash)) {
+                    entry.iconKey = getBlobIconKey(c.getLong(indexIconHash), true);
+                }
+                setEntryTitle(entry, c.getString(indexLabel), user);
+                if (mCache.putIfAbsent(cacheKey, entry)) {
+                    prefetched++;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+            // Keep whatever we have read so far
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return prefetched;
+    }
+
+    /**
+     * Returns the low-res icon atlas of the user, opening it and restoring its slots from the DB
+     * on first use, or null if the atlas is disabled.
+     */
+    private LowResIconAtlas getLowResAtlas(long userSerial) {
+        if (mLowResAtlases == null) {
+            return null;
+        }
+        synchronized (mLowResAtlases) {
+            return getLowResAtlasLocked(userSerial);
+        }
+    }
+
+    private LowResIconAtlas getLowResAtlasLocked(long userSerial) {
+        File dir = mContext.getDatabasePath(IconDB.APP_ICONS_DB).getParentFile();
+        int tableGeneration = mIconDb.getTableGeneration();
+        if (tableGeneration != mLowResAtlasGeneration) {
+            // The table was recreated, none of the slots are used any more.
+            for (LowResIconAtlas atlas : mLowResAtlases.values()) {
+                atlas.delete();
+            }
+            mLowResAtlases.clear();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(LOW_RES_ATLAS_PREFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+            mLowResAtlasGeneration = tableGeneration;
+        }
+
+        LowResIconAtlas atlas = mLowResAtlases.get(userSerial);
+        if (atlas != null) {
+            return atlas;
+        }
+        atlas = new LowResIconAtlas(new File(dir, LOW_RES_ATLAS_PREFIX + userSerial + ".atlas"),
+                mLowResIconSize, mLowResIconSize);
         Cursor c = null;
         try {
             c = mIconDb.query(
-                new String[]{lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
-                IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                    new String[]{IconDB.COLUMN_COMPONENT, IconDB.COLUMN_ATLAS_SLOT},
+                    IconDB.COLUMN_USER + " = ? AND " + IconDB.COLUMN_ATLAS_SLOT + " IS NOT NULL",
+                    new String[]{Long.toString(userSerial)});
+            while (c.moveToNext()) {
+                atlas.restoreSlot(c.getString(0), c.getInt(1));
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        mLowResAtlases.put(userSerial, atlas);
+        return atlas;
+    }
+
+    /**
+     * Also stores {@param lowRes} in the atlas of the user, and records its slot in
+     * {@param values}.
+     */
+    private void addLowResToAtlas(ContentValues values, Bitmap lowRes, long iconHash,
+            ComponentKey key) {
+        LowResIconAtlas atlas = getLowResAtlas(mUserManager.getSerialNumberForUser(key.user));
+        if (atlas == null) {
+            return;
+        }
+        int slot = atlas.write(key.componentName.flattenToString(), lowRes, iconHash);
+        if (slot >= 0) {
+            values.put(IconDB.COLUMN_ATLAS_SLOT, slot);
+        } else {
+            values.putNull(IconDB.COLUMN_ATLAS_SLOT);
+        }
+    }
+
+    /**
+     * Frees the atlas slot of {@param component}, to be called before its row is deleted.
+     */
+    private void releaseLowResSlot(String component, long userSerial) {
+        LowResIconAtlas atlas = getLowResAtlas(userSerial);
+        if (atlas != null) {
+            atlas.releaseSlot(component);
+        }
+    }
+
+    /**
+     * @return the number of queries issued against the icon DB so far.
+     */
+    public int getDbQueryCount() {
+        return mDbQueryCount.get();
+    }
+
+    private void setEntryTitle(CacheEntry entry, String title, UserHandleCompat user) {
+        entry.title = title;
+        if (entry.title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+    }
+
+    private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        Cursor c = null;
+        try {
+            mDbQueryCount.incrementAndGet();
+            c = mIconDb.rawQuery(
+                lowRes ? IconDB.LOOKUP_ICON_LOW_RES_SQL : IconDB.LOOKUP_ICON_SQL,
                 new String[]{cacheKey.componentName.flattenToString(),
                         Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
             if (c.moveToNext()) {
                 entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
                 entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(
-                            entry.title, cacheKey.user);
+                if (!c.isNull(2)) {
+                    entry.iconKey = getBlobIconKey(c.getLong(2), lowRes);
                 }
+                setEntryTitle(entry, c.getString(1), cacheKey.user);
                 return true;
             }
         } catch (SQLiteException e) {
@@ -645,55 +1224,165 @@ public class IconCache {
 
     /**
      * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfoCompat list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * LauncherActivityInfoCompat list. Items are updated/added in batches which fit in
+     * {@link #mIconUpdateBatchMillis}, so that the worker thread doesn't get blocked. The icons of
+     * a batch are rendered in parallel on {@link #mRenderPool}, then written in a single DB
+     * transaction.
      */
     @Thunk class SerializedIconUpdateTask implements Runnable {
         private final long mUserSerial;
         private final HashMap<String, PackageInfo> mPkgInfoMap;
         private final Stack<LauncherActivityInfoCompat> mAppsToAdd;
         private final Stack<LauncherActivityInfoCompat> mAppsToUpdate;
+        private final HashMap<String, LauncherIcons.Normalization> mNormalizations;
+        // The blobs of the rows to update, which may no longer be used once they are updated.
+        private final HashSet<Long> mReplacedIconHashes;
         private final HashSet<String> mUpdatedPackages = new HashSet<String>();
+        private final Runnable mOnComplete;
 
         @Thunk SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
                 Stack<LauncherActivityInfoCompat> appsToAdd,
-                Stack<LauncherActivityInfoCompat> appsToUpdate) {
+                Stack<LauncherActivityInfoCompat> appsToUpdate,
+                HashMap<String, LauncherIcons.Normalization> normalizations,
+                HashSet<Long> replacedIconHashes, Runnable onComplete) {
             mUserSerial = userSerial;
             mPkgInfoMap = pkgInfoMap;
             mAppsToAdd = appsToAdd;
             mAppsToUpdate = appsToUpdate;
+            mNormalizations = normalizations;
+            mReplacedIconHashes = replacedIconHashes;
+            mOnComplete = onComplete;
         }
 
+        private boolean mNotifyUpdatedPackages;
+
         @Override
         public void run() {
+            final long deadline = SystemClock.uptimeMillis() + mIconUpdateBatchMillis;
+            // Always make progress, even if a single batch takes longer than the deadline.
+            do {
+                final ArrayList<PendingIcon> batch = renderNextBatch();
+                mIconDb.runInTransaction(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (PendingIcon icon : batch) {
+                            icon.writeToDB();
+                        }
+                    }
+                });
+            } while (hasNext() && SystemClock.uptimeMillis() < deadline);
+
+            if (mNotifyUpdatedPackages) {
+                // No more app to update. Notify model, now that the batch is committed.
+                mNotifyUpdatedPackages = false;
+                LauncherAppState.getInstance(mContext).getModel().onPackageIconsUpdated(
+                        mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
+
+            if (hasNext()) {
+                scheduleNext();
+            } else {
+                // Updated rows may no longer use their previous blobs.
+                mIconDb.deleteUnusedBlobs(mReplacedIconHashes);
+                if (mOnComplete != null) {
+                    mOnComplete.run();
+                }
+            }
+        }
+
+        private boolean hasNext() {
+            return !mAppsToUpdate.isEmpty() || !mAppsToAdd.isEmpty();
+        }
+
+        /**
+         * Renders the next icons in parallel, one per render thread, and waits for them.
+         * @return the rendered icons, to be written in a single transaction.
+         */
+        private ArrayList<PendingIcon> renderNextBatch() {
+            ArrayList<PendingIcon> batch = new ArrayList<>();
+            while (hasNext() && batch.size() < mRenderPool.getParallelism()) {
+                PendingIcon icon = nextIcon();
+                if (icon != null) {
+                    icon.render();
+                    batch.add(icon);
+                }
+            }
+
+            ArrayList<PendingIcon> rendered = new ArrayList<>(batch.size());
+            for (PendingIcon icon : batch) {
+                try {
+                    icon.values = icon.pendingValues.get();
+                    rendered.add(icon);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Unable to render icon for " + icon.app.getComponentName(),
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while rendering icons", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return rendered;
+        }
+
+        private PendingIcon nextIcon() {
             if (!mAppsToUpdate.isEmpty()) {
                 LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String cn = app.getComponentName().flattenToString();
-                ContentValues values = updateCacheAndGetContentValues(app, true);
-                mIconDb.update(values,
-                        IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                        new String[]{cn, Long.toString(mUserSerial)});
                 mUpdatedPackages.add(app.getComponentName().getPackageName());
 
                 if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify model.
-                    LauncherAppState.getInstance(mContext).getModel().onPackageIconsUpdated(
-                            mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+                    mNotifyUpdatedPackages = true;
                 }
-
-                // Let it run one more time.
-                scheduleNext();
+                return new PendingIcon(app, null);
             } else if (!mAppsToAdd.isEmpty()) {
                 LauncherActivityInfoCompat app = mAppsToAdd.pop();
                 PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
                 if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
-                    }
+                    return new PendingIcon(app, info);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * An icon to update, or to add if it has a {@link PackageInfo}. It is rendered on the
+         * render pool, and written to the DB on the worker thread.
+         */
+        private class PendingIcon implements Callable<ContentValues> {
+            final LauncherActivityInfoCompat app;
+            final PackageInfo info;
+            final String cn;
+            Future<ContentValues> pendingValues;
+            ContentValues values;
+
+            PendingIcon(LauncherActivityInfoCompat app, PackageInfo info) {
+                this.app = app;
+                this.info = info;
+                cn = app.getComponentName().flattenToString();
+            }
+
+            void render() {
+                pendingValues = mRenderPool.submit(this);
+            }
+
+            @Override
+            public ContentValues call() {
+                if (info == null) {
+                    return updateCacheAndGetContentValues(app, true, mNormalizations.get(cn));
+                } else {
+                    // Reuse the existing entry if it was already created during loader.
+                    return updateCacheAndGetContentValues(app, false, null);
                 }
+            }
 
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+            void writeToDB() {
+                if (info == null) {
+                    mIconDb.update(values,
+                            IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                            new String[]{cn, Long.toString(mUserSerial)});
+                } else {
+                    addIconToDB(values, app.getComponentName(), info, mUserSerial);
                 }
             }
         }
@@ -709,79 +1398,347 @@ public class IconCache {
     }
 
     static final class IconDB extends SQLiteCacheHelper {
-        private final static int DB_VERSION = 7;
+        private final static int DB_VERSION = 8;
+        // The previous release, which stores PNG blobs in the rows and lacks the package, atlas
+        // slot and normalization columns. Its version only has the icon size below the release.
+        private final static int DB_VERSION_ROW_BLOBS = 7;
+        private final static int ROW_BLOBS_VERSION_SHIFT = 16;
 
         private final static int RELEASE_VERSION = DB_VERSION;
+        // The release version is stored above the codec id and the icon size.
+        private final static int RELEASE_VERSION_SHIFT = 20;
+        private final static int CONFIG_VERSION_MASK = (1 << RELEASE_VERSION_SHIFT) - 1;
 
         static final String APP_ICONS_DB = "app_icons.db";
 
         private final static String TABLE_NAME = "icons";
         private final static String COLUMN_ROWID = "rowid";
         private final static String COLUMN_COMPONENT = "componentName";
+        private final static String COLUMN_PACKAGE = "packageName";
         private final static String COLUMN_USER = "profileId";
         private final static String COLUMN_LAST_UPDATED = "lastUpdated";
         private final static String COLUMN_VERSION = "version";
-        private final static String COLUMN_ICON = "icon";
-        private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
+        private final static String COLUMN_ICON_HASH = "icon_hash";
         private final static String COLUMN_LABEL = "label";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
+        private final static String COLUMN_ATLAS_SLOT = "atlas_slot";
+        private final static String COLUMN_ICON_SCALE = "icon_scale";
+        private final static String COLUMN_ICON_MASK_SCALE = "icon_mask_scale";
+        private final static String COLUMN_ICON_IS_SHAPE = "icon_is_shape";
+
+        // Blobs are stored once per content hash, and shared by all the rows using them.
+        private final static String BLOB_TABLE_NAME = "icon_blobs";
+        private final static String COLUMN_HASH = "hash";
+        private final static String COLUMN_ICON = "icon";
+        private final static String COLUMN_ICON_LOW_RES = "icon_low_res";
 
-        public IconDB(Context context, int iconPixelSize) {
+        private final static String INDEX_PACKAGE = TABLE_NAME + "_package_index";
+        private final static String INDEX_ICON_HASH = TABLE_NAME + "_icon_hash_index";
+
+        private final static String BLOB_JOIN = " FROM " + TABLE_NAME + " i LEFT JOIN "
+                + BLOB_TABLE_NAME + " b ON b." + COLUMN_HASH + " = i." + COLUMN_ICON_HASH;
+        private final static String LOOKUP_SELECTION = BLOB_JOIN + " WHERE i." + COLUMN_COMPONENT
+                + " = ? AND i." + COLUMN_USER + " = ?";
+        final static String LOOKUP_ICON_SQL = "SELECT b." + COLUMN_ICON + ", i." + COLUMN_LABEL
+                + ", i." + COLUMN_ICON_HASH + LOOKUP_SELECTION;
+        final static String LOOKUP_ICON_LOW_RES_SQL = "SELECT b." + COLUMN_ICON_LOW_RES + ", i."
+                + COLUMN_LABEL + ", i." + COLUMN_ICON_HASH + LOOKUP_SELECTION;
+        final static String PREFETCH_LOW_RES_SQL = "SELECT i." + COLUMN_COMPONENT + ", b."
+                + COLUMN_ICON_LOW_RES + ", i." + COLUMN_LABEL + ", i." + COLUMN_ICON_HASH
+                + BLOB_JOIN + " WHERE i." + COLUMN_USER + " = ?";
+        final static String PREFETCH_ATLAS_SQL = "SELECT " + COLUMN_COMPONENT + ", "
+                + COLUMN_ATLAS_SLOT + ", " + COLUMN_LABEL + ", " + COLUMN_ICON_HASH
+                + " FROM " + TABLE_NAME + " WHERE " + COLUMN_USER + " = ?";
+
+        private final static String INSERT_BLOB_SQL = "INSERT OR IGNORE INTO " + BLOB_TABLE_NAME
+                + " (" + COLUMN_HASH + ", " + COLUMN_ICON + ", " + COLUMN_ICON_LOW_RES
+                + ") VALUES (?, ?, ?)";
+        // Uses the primary key of the blobs and the icon hash index of the rows.
+        private final static String DELETE_UNUSED_BLOB_SQL = "DELETE FROM " + BLOB_TABLE_NAME
+                + " WHERE " + COLUMN_HASH + " = ? AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_ICON_HASH + " = ?)";
+        private final static String BLOB_SIZE = "IFNULL(LENGTH(b." + COLUMN_ICON + "), 0)"
+                + " + IFNULL(LENGTH(b." + COLUMN_ICON_LOW_RES + "), 0)";
+        private final static String SHARED_BLOB_SAVINGS_SQL = "SELECT (SELECT TOTAL("
+                + BLOB_SIZE + ")" + BLOB_JOIN + ") - (SELECT TOTAL(" + BLOB_SIZE + ") FROM "
+                + BLOB_TABLE_NAME + " b)";
+
+        private final Context mContext;
+        // Incremented every time the table is created.
+        private final AtomicInteger mTableGeneration = new AtomicInteger();
+
+        public IconDB(Context context, int iconPixelSize, IconCodec codec) {
+            // The blob codec is part of the version, so that switching codec resets the DB.
             super(context, APP_ICONS_DB,
-                    (RELEASE_VERSION << 16) + iconPixelSize,
-                    TABLE_NAME);
+                    (RELEASE_VERSION << RELEASE_VERSION_SHIFT) + (codec.getId() << 16)
+                            + iconPixelSize,
+                    TABLE_NAME, true /* highThroughput */);
+            mContext = context;
         }
 
         @Override
         protected void onCreateTable(SQLiteDatabase db) {
+            mTableGeneration.incrementAndGet();
+            clearSyncState(mContext);
+            // The table is empty, so none of the blobs are used.
+            db.execSQL("DROP TABLE IF EXISTS " + BLOB_TABLE_NAME);
+            createBlobTable(db);
             db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
                     COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_PACKAGE + " TEXT NOT NULL DEFAULT '', " +
                     COLUMN_USER + " INTEGER NOT NULL, " +
                     COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
                     COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
-                    COLUMN_ICON + " BLOB, " +
-                    COLUMN_ICON_LOW_RES + " BLOB, " +
+                    COLUMN_ICON_HASH + " INTEGER, " +
                     COLUMN_LABEL + " TEXT, " +
                     COLUMN_SYSTEM_STATE + " TEXT, " +
+                    COLUMN_ATLAS_SLOT + " INTEGER, " +
+                    COLUMN_ICON_SCALE + " REAL, " +
+                    COLUMN_ICON_MASK_SCALE + " REAL, " +
+                    COLUMN_ICON_IS_SHAPE + " INTEGER NOT NULL DEFAULT 0, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
+            createPackageIndex(db);
+            createIconHashIndex(db);
+        }
+
+        int getTableGeneration() {
+            return mTableGeneration.get();
+        }
+
+        private static void createBlobTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + BLOB_TABLE_NAME + " (" +
+                    COLUMN_HASH + " INTEGER PRIMARY KEY, " +
+                    COLUMN_ICON + " BLOB, " +
+                    COLUMN_ICON_LOW_RES + " BLOB" +
+                    ");");
+        }
+
+        /**
+         * @return a 64 bit hash of the content of {@param data}. Blobs with the same hash are
+         * stored once without comparing their bytes, so it is truncated from a cryptographic
+         * digest, which makes collisions between distinct icons practically impossible.
+         */
+        static long contentHash(byte[]... data) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every platform implementation provides SHA-256.
+                throw new RuntimeException(e);
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (byte[] bytes : data) {
+                if (bytes != null) {
+                    digest.update(bytes);
+                }
+                // Separate the arrays, so that moving bytes from one to the next changes the hash.
+                length.clear();
+                digest.update(length.putInt(bytes == null ? -1 : bytes.length).array());
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        }
+
+        @Override
+        public void insertOrReplace(ContentValues values) {
+            storeBlobs(values);
+            super.insertOrReplace(values);
+        }
+
+        @Override
+        public void update(ContentValues values, String whereClause, String[] whereArgs) {
+            storeBlobs(values);
+            super.update(values, whereClause, whereArgs);
+        }
+
+        /**
+         * Moves the icons of {@param values} to the blob table, where they are shared with the
+         * other rows with the same icons, and references them by hash instead.
+         */
+        private void storeBlobs(ContentValues values) {
+            if (!values.containsKey(COLUMN_ICON)) {
+                return;
+            }
+            byte[] icon = values.getAsByteArray(COLUMN_ICON);
+            byte[] lowRes = values.getAsByteArray(COLUMN_ICON_LOW_RES);
+            values.remove(COLUMN_ICON);
+            values.remove(COLUMN_ICON_LOW_RES);
+            // The hash may already be known, e.g. to validate the atlas slot.
+            Long hash = values.getAsLong(COLUMN_ICON_HASH);
+            if (hash == null) {
+                hash = contentHash(icon, lowRes);
+            }
+            executeUpdate(INSERT_BLOB_SQL, hash, icon, lowRes);
+            values.put(COLUMN_ICON_HASH, hash);
+        }
+
+        /**
+         * @return the hashes of the blobs used by the rows matching {@param selection}.
+         */
+        HashSet<Long> getIconHashes(String selection, String[] selectionArgs) {
+            HashSet<Long> iconHashes = new HashSet<>();
+            Cursor c = null;
+            try {
+                c = query(new String[]{COLUMN_ICON_HASH},
+                        "(" + selection + ") AND " + COLUMN_ICON_HASH + " IS NOT NULL",
+                        selectionArgs);
+                while (c.moveToNext()) {
+                    iconHashes.add(c.getLong(0));
+                }
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Error reading icon cache", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            return iconHashes;
+        }
+
+        /**
+         * Deletes the blobs among {@param iconHashes} which are no longer used by any row. Only
+         * the blobs of the rows which were deleted or updated need to be checked.
+         */
+        void deleteUnusedBlobs(final Collection<Long> iconHashes) {
+            if (iconHashes.isEmpty()) {
+                return;
+            }
+            runInTransaction(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (Long hash : iconHashes) {
+                        executeUpdate(DELETE_UNUSED_BLOB_SQL, hash, hash);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return the size of the blobs used by every row, minus the size actually stored.
+         */
+        long getSharedBlobSavings() {
+            Cursor c = null;
+            try {
+                c = rawQuery(SHARED_BLOB_SAVINGS_SQL, null);
+                return c.moveToFirst() ? c.getLong(0) : 0;
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Error reading icon cache", e);
+                return 0;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        private static void createPackageIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PACKAGE + " ON " + TABLE_NAME +
+                    " (" + COLUMN_USER + ", " + COLUMN_PACKAGE + ");");
+        }
+
+        private static void createIconHashIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ICON_HASH + " ON " + TABLE_NAME +
+                    " (" + COLUMN_ICON_HASH + ");");
+        }
+
+        @Override
+        protected boolean onUpgradeTable(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The previous release has the same version layout as a PNG codec, with the icon size
+            // in the lower bits.
+            if (oldVersion >> ROW_BLOBS_VERSION_SHIFT != DB_VERSION_ROW_BLOBS
+                    || (oldVersion & ((1 << ROW_BLOBS_VERSION_SHIFT) - 1))
+                            != (newVersion & CONFIG_VERSION_MASK)) {
+                // The blobs can't be reused if the codec or the icon size changed.
+                return false;
+            }
+            // Keep the cached icons, and only add the missing columns.
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_PACKAGE + " TEXT NOT NULL DEFAULT '';");
+            // Fill the package from the flattened component.
+            db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_PACKAGE + " = substr(" +
+                    COLUMN_COMPONENT + ", 1, instr(" + COLUMN_COMPONENT + ", '/') - 1);");
+            createPackageIndex(db);
+            // No atlas slot, the low-res icons are read from the blobs until rewritten.
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_ATLAS_SLOT + " INTEGER;");
+            // Unknown normalization, computed again on the next render.
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_ICON_SCALE + " REAL;");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_ICON_MASK_SCALE + " REAL;");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_ICON_IS_SHAPE + " INTEGER NOT NULL DEFAULT 0;");
+            moveBlobsToBlobTable(db);
+            return true;
+        }
+
+        /**
+         * Moves the blobs stored in the rows of an old table to the blob table. The old columns
+         * can't be dropped, they are left empty.
+         */
+        private static void moveBlobsToBlobTable(SQLiteDatabase db) {
+            createBlobTable(db);
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " +
+                    COLUMN_ICON_HASH + " INTEGER;");
+            createIconHashIndex(db);
+            Cursor c = db.query(TABLE_NAME,
+                    new String[]{COLUMN_ROWID, COLUMN_ICON, COLUMN_ICON_LOW_RES},
+                    COLUMN_ICON + " IS NOT NULL", null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    byte[] icon = c.getBlob(1);
+                    byte[] lowRes = c.getBlob(2);
+                    long hash = contentHash(icon, lowRes);
+                    db.execSQL(INSERT_BLOB_SQL, new Object[]{hash, icon, lowRes});
+                    db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_ICON_HASH + " = ?, " +
+                            COLUMN_ICON + " = NULL, " + COLUMN_ICON_LOW_RES + " = NULL WHERE " +
+                            COLUMN_ROWID + " = ?", new Object[]{hash, c.getLong(0)});
+                }
+            } finally {
+                c.close();
+            }
         }
     }
 
-    private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor) {
+    private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor,
+            ComponentKey key) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
+        values.put(IconDB.COLUMN_ICON, mIconCodec.encode(icon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
 
+        Bitmap lowRes;
         if (lowResBackgroundColor == Color.TRANSPARENT) {
-          values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
-          Bitmap.createScaledBitmap(icon,
+          lowRes = Bitmap.createScaledBitmap(icon,
                   icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                  icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
+                  icon.getHeight() / LOW_RES_SCALE_FACTOR, true);
+          values.put(IconDB.COLUMN_ICON_LOW_RES, mIconCodec.encode(lowRes));
         } else {
-            synchronized (this) {
-                if (mLowResBitmap == null) {
-                    mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                            icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
-                    mLowResCanvas = new Canvas(mLowResBitmap);
-                    mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
-                }
-                mLowResCanvas.drawColor(lowResBackgroundColor);
-                mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
-                        new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
-                        mLowResPaint);
-                values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(mLowResBitmap));
-            }
+            // The low-res bitmap is small, allocate it for every call so that icons can be
+            // encoded on several threads at once.
+            lowRes = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
+                    icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
+            Canvas canvas = new Canvas(lowRes);
+            canvas.drawColor(lowResBackgroundColor);
+            canvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
+                    new Rect(0, 0, lowRes.getWidth(), lowRes.getHeight()),
+                    new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG));
+            values.put(IconDB.COLUMN_ICON_LOW_RES, mIconCodec.encode(lowRes));
         }
+        // The hash of the blobs, which the row references them by.
+        long iconHash = IconDB.contentHash(values.getAsByteArray(IconDB.COLUMN_ICON),
+                values.getAsByteArray(IconDB.COLUMN_ICON_LOW_RES));
+        values.put(IconDB.COLUMN_ICON_HASH, iconHash);
+        addLowResToAtlas(values, lowRes, iconHash, key);
         return values;
     }
 
-    private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
+    private Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
         byte[] data = c.getBlob(iconIndex);
         try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            return mIconCodec.decode(data, options);
         } catch (Exception e) {
             return null;
         }
@@ -29,6 +29,7 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
+import com.sprd.powersavemodelauncher.graphics.LauncherIcons;
 import com.sprd.powersavemodelauncher.util.Thunk;
 
 import java.util.ArrayList;
@@ -147,6 +148,8 @@ public class InvariantDeviceProfile {
         } else if (!savedIconMaskPath.equals(getIconShapePath(context))) {
             Utilities.getDevicePrefs(context).edit().putString(KEY_ICON_PATH_REF, getIconShapePath(context))
                     .apply();
+            LauncherIcons.onIconShapeChanged();
+            LauncherAppState.getInstance(context).getIconCache().clearBaseIcons();
             LauncherAppState.getInstance(context).getIconCache().mIconDb.clearDbIfNeed();
             LauncherAppState.getInstance(context).mModel.forceReload();
         }
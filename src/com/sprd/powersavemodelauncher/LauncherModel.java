@@ -26,15 +26,15 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Process;
-import android.os.UserHandle;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
+import android.util.Pair;
 
-import com.sprd.PlatformHelper;
 import com.sprd.powersavemodelauncher.compat.LauncherActivityInfoCompat;
 import com.sprd.powersavemodelauncher.compat.LauncherAppsCompat;
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
+import com.sprd.powersavemodelauncher.graphics.LauncherIcons;
 import com.sprd.powersavemodelauncher.util.ComponentKey;
 import com.sprd.powersavemodelauncher.util.PackageManagerHelper;
 import com.sprd.powersavemodelauncher.util.StringFilter;
@@ -46,10 +46,21 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the PowerSaveLauncher. It is expected that there should be only one
@@ -74,6 +85,10 @@ public class LauncherModel extends BroadcastReceiver
     @Thunk final LauncherAppState mApp;
     @Thunk final Object mLock = new Object();
     @Thunk DeferredHandler mHandler = new DeferredHandler();
+
+    // How long package changes are merged before updating the model.
+    private static final long PACKAGE_UPDATE_DELAY = 100;
+    private final PackageUpdateQueue mPackageUpdateQueue = new PackageUpdateQueue();
     @Thunk LoaderTask mLoaderTask;
     @Thunk boolean mHasLoaderCompletedOnce;
 
@@ -83,6 +98,23 @@ public class LauncherModel extends BroadcastReceiver
     }
     @Thunk static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Loads the apps of the other profiles, like a clone user or a work profile, while the loader
+    // thread loads the apps of the first one.
+    private static final int MAX_PROFILE_LOADER_THREADS = 2;
+    private static final ThreadPoolExecutor sProfileLoaderExecutor = new ThreadPoolExecutor(
+            MAX_PROFILE_LOADER_THREADS, MAX_PROFILE_LOADER_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "launcher-loader-profile-" + mCount.incrementAndGet());
+                }
+            });
+    static {
+        sProfileLoaderExecutor.allowCoreThreadTimeOut(true);
+    }
+
     @Thunk WeakReference<Callbacks> mCallbacks;
 
     // < only access in worker thread >
@@ -110,6 +142,8 @@ public class LauncherModel extends BroadcastReceiver
 
     public static List<String> mRemovedPackageList = new ArrayList<>();
 
+    private final AllowedAppRegistry mAllowedApps;
+
     public interface Callbacks {
         boolean setLoadOnResume();
         void bindAllApplications(ArrayList<AppInfo> apps);
@@ -134,6 +168,7 @@ public class LauncherModel extends BroadcastReceiver
 
         mLauncherApps = LauncherAppsCompat.getInstance(context);
         mUserManager = UserManagerCompat.getInstance(context);
+        mAllowedApps = new AllowedAppRegistry(context);
 
         //Add for removed package list
         String[] hidePackages = context.getResources().getStringArray(R.array.remove_package_name);
@@ -283,6 +318,7 @@ public class LauncherModel extends BroadcastReceiver
         } else if (LauncherAppsCompat.ACTION_MANAGED_PROFILE_ADDED.equals(action)
                 || LauncherAppsCompat.ACTION_MANAGED_PROFILE_REMOVED.equals(action)) {
             UserManagerCompat.getInstance(context).enableAndResetCache();
+            LauncherIcons.onUsersChanged();
             forceReload();
         } else if (LauncherAppsCompat.ACTION_MANAGED_PROFILE_AVAILABLE.equals(action) ||
                 LauncherAppsCompat.ACTION_MANAGED_PROFILE_UNAVAILABLE.equals(action)) {
@@ -339,45 +375,15 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
-    public HashMap<Integer, ComponentKey> getAllowedAppMap(boolean isInitial) {
-        HashMap<Integer, ComponentKey> allowedAppMap = new HashMap<>();
-        if (mApp == null || mApp.getContext() == null) {
-            return allowedAppMap;
-        }
-        Context context = mApp.getContext();
-        List<String> allowedAppList = PlatformHelper.getAllowedAppListInUltraSavingMode(context);
-        for(String value:allowedAppList) {
-            String[] sArrays = value.split("#");
-            if(sArrays.length >= 2){
-                String componentStr = sArrays[0];
-                int position = Integer.valueOf(sArrays[1]);
-                UserHandle user;
-                if(sArrays.length >= 3) {
-                    long userSerialNumber = Integer.valueOf(sArrays[2]);
-                    user = Utilities.getUserHandleFromSerialNumber(context, userSerialNumber);
-                } else {
-                    user = UserHandleCompat.myUserHandle().getUser();
-                    if (PlatformHelper.delAllowedAppInUltraSavingMode(context, value)) {
-                        UserHandleCompat myUser = UserHandleCompat.myUserHandle();
-                        String addValue = value + "#" + Utilities.getUserSerialNumber(context, myUser);
-                        PlatformHelper.addAllowedAppInUltraSavingMode(context, addValue);
-                    }
-                }
-                if (user == null) continue;
-                ComponentName componentName = ComponentName.unflattenFromString(componentStr);
-                ComponentKey componentKey = new ComponentKey(componentName,UserHandleCompat.fromUser(user));
+    public AllowedAppRegistry getAllowedApps() {
+        return mAllowedApps;
+    }
 
-                if(isInitial) {
-                    if(isValidPackageActivity(context, componentName, UserHandleCompat.fromUser(user))
-                            && !mRemovedPackageList.contains(componentName.getPackageName())) {
-                        allowedAppMap.put(position, componentKey);
-                    }
-                } else {
-                    allowedAppMap.put(position, componentKey);
-                }
-            }
-        }
-        return allowedAppMap;
+    /**
+     * @param isInitial whether to skip the apps which can't be started or are hidden.
+     */
+    public HashMap<Integer, ComponentKey> getAllowedAppMap(boolean isInitial) {
+        return mAllowedApps.getSlotMap(isInitial);
     }
 
     public ItemInfo getWorkspaceItemInfo(ComponentName componentName, UserHandleCompat user, int position) {
@@ -414,7 +420,8 @@ public class LauncherModel extends BroadcastReceiver
      */
     private class LoaderTask implements Runnable {
         private Context mContext;
-        private boolean mStopped;
+        // Read by the profile loader threads too.
+        private volatile boolean mStopped;
 
         LoaderTask(Context context) {
             mContext = context;
@@ -430,12 +437,34 @@ public class LauncherModel extends BroadcastReceiver
             //check if local has changed.
             mIsLocalChanged = mIconCache.hasLocalChanged(UserHandleCompat.myUserHandle());
 
+            // On a cold start, bind what was bound last time until it is verified below. The
+            // saved titles are stale after a locale change.
+            ModelSnapshot snapshot = null;
+            if (!mHasLoaderCompletedOnce && !mIsLocalChanged
+                    && (sAppsForWorkspaceTest == null || sAppsForWorkspaceTest.isEmpty())) {
+                snapshot = bindSnapshot();
+            }
+
             keep_running: {
-                loadAndBindWorkspace();
-                if (mStopped) {
+                ArrayList<ItemInfo> workspaceItems = loadAndBindWorkspace(snapshot);
+                if (mStopped || workspaceItems == null) {
+                    break keep_running;
+                }
+                ArrayList<AppInfo> apps = loadAndBindAllApps(snapshot);
+                if (mStopped || apps == null) {
                     break keep_running;
                 }
-                loadAndBindAllApps();
+                ModelSnapshot.write(mContext, workspaceItems, apps);
+                if (DEBUG_LOADERS) {
+                    // Queries the whole icon DB, after the binds were posted.
+                    Log.d(TAG, mIconCache.getDedupStats());
+                    // Once the binds of this load ran.
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            Log.d(TAG, mHandler.getStats());
+                        }
+                    });
+                }
             }
 
 
@@ -490,11 +519,43 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
-        private void loadAndBindWorkspace() {
+        /**
+         * Binds the saved snapshot of the model, if any.
+         * @return the bound snapshot, to verify against the loaded model.
+         */
+        private ModelSnapshot bindSnapshot() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return null;
+            }
+            final ModelSnapshot snapshot = ModelSnapshot.read(mContext, mIconCache);
+            if (snapshot == null) {
+                return null;
+            }
+            if (DEBUG_LOADERS) Log.d(TAG, "bindSnapshot: " + snapshot.apps.size() + " apps");
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.bindWorkspaceItems(new ArrayList<>(snapshot.workspaceItems));
+                        callbacks.bindAllApplications(new ArrayList<>(snapshot.apps));
+                    }
+                }
+            });
+            return snapshot;
+        }
+
+        /**
+         * @return the loaded workspace items.
+         */
+        private ArrayList<ItemInfo> loadAndBindWorkspace(ModelSnapshot snapshot) {
             //1. load workspace data
             sBgWorkspaceItems.clear();
 
-            //get allowed app list
+            //get allowed app list, which may have been changed outside of the launcher since the
+            //last load
+            mAllowedApps.invalidate();
             HashMap<Integer, ComponentKey> allowedAppMap;
             if (sAppsForWorkspaceTest != null && sAppsForWorkspaceTest.size() > 0) {
                 allowedAppMap = (HashMap<Integer, ComponentKey>) sAppsForWorkspaceTest.clone();
@@ -516,15 +577,20 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 sBgWorkspaceItems.add(itemInfo);
             }
+            updatePinnedWorkspaceIcons();
 
             //2. bind workspace item
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
                 // This launcher has exited and nobody bothered to tell us.  Just bail.
                 Log.w(TAG, "LoaderTask running with no launcher");
-                return;
+                return null;
             }
             final ArrayList<ItemInfo> bgItemInfo = new ArrayList<>(sBgWorkspaceItems);
+            if (snapshot != null && snapshot.isSameWorkspace(bgItemInfo)) {
+                // Already bound
+                return bgItemInfo;
+            }
 
             Runnable r = new Runnable() {
                 @Override
@@ -536,71 +602,175 @@ public class LauncherModel extends BroadcastReceiver
                 }
             };
             runOnMainThread(r);
+            return bgItemInfo;
         }
 
-        private void loadAndBindAllApps() {
+        /**
+         * @return the loaded apps.
+         */
+        private ArrayList<AppInfo> loadAndBindAllApps(ModelSnapshot snapshot) {
             //1. load all apps data
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
                 // This launcher has exited and nobody bothered to tell us.  Just bail.
                 Log.w(TAG, "LoaderTask running with no launcher (loadAllApps)");
-                return;
+                return null;
             }
 
             final List<UserHandleCompat> profiles = mUserManager.getUserProfiles();
 
             // Clear the list of apps
             mBgAllAppsList.clear();
-            HashMap<Integer, ComponentKey> allowedApp=getAllowedAppMap(true);
-            for (UserHandleCompat user : profiles) {
-                // Query for the set of apps
-                final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
-
-                // Fail if we don't have any apps
-                // TODO: Fix this. Only fail for the current user.
-                if (apps == null || apps.isEmpty()) {
-                    continue;
-                }
-                boolean quietMode = mUserManager.isQuietModeEnabled(user);
-                // Create the ApplicationInfos
-                for (int i = 0; i < apps.size(); i++) {
-                    LauncherActivityInfoCompat app = apps.get(i);
-
-                    boolean added=true;
-                    Set<Integer> set=allowedApp.keySet();
-                    for(int j=0;j<set.size();j++){
-                        ComponentKey key=allowedApp.get(set.toArray()[j]);
-                        if(app.getComponentName().getPackageName().equals(key.componentName.getPackageName())){
-                            added=false;
-                            break;
+            final int dbQueriesBefore = mIconCache.getDbQueryCount();
+            int appsLoaded = 0;
+
+            // Load the other profiles in parallel, and merge them in the profile order so that
+            // the list is the same as when they were loaded one after the other.
+            final ArrayList<Future<ArrayList<AppInfo>>> otherProfiles = new ArrayList<>();
+            for (int i = 1; i < profiles.size(); i++) {
+                final UserHandleCompat user = profiles.get(i);
+                otherProfiles.add(sProfileLoaderExecutor.submit(
+                        new Callable<ArrayList<AppInfo>>() {
+                            @Override
+                            public ArrayList<AppInfo> call() {
+                                return loadAllAppsForProfile(user);
+                            }
+                        }));
+            }
+            try {
+                for (int i = 0; i < profiles.size(); i++) {
+                    if (mStopped) {
+                        return null;
+                    }
+                    ArrayList<AppInfo> apps;
+                    if (i == 0) {
+                        apps = loadAllAppsForProfile(profiles.get(i));
+                    } else {
+                        try {
+                            apps = otherProfiles.get(i - 1).get();
+                        } catch (ExecutionException e) {
+                            // Loading it again here would most likely fail the same way. Its
+                            // apps are listed by the next load instead.
+                            Log.e(TAG, "Failed to load the apps of " + profiles.get(i),
+                                    e.getCause());
+                            continue;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
                         }
                     }
-                    if(added){
-                        // This builds the icon bitmaps.
-                        mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache, quietMode));
+                    for (AppInfo info : apps) {
+                        mBgAllAppsList.add(info);
                     }
-
-
+                    appsLoaded += apps.size();
+                }
+            } finally {
+                // Drop the profiles which are still queued if this load was stopped. The running
+                // ones return early, see loadAllAppsForProfile().
+                for (Future<ArrayList<AppInfo>> future : otherProfiles) {
+                    future.cancel(false);
                 }
             }
+            if (mStopped) {
+                return null;
+            }
+            if (DEBUG_LOADERS) {
+                int dbQueries = mIconCache.getDbQueryCount() - dbQueriesBefore;
+                Log.d(TAG, "loadAndBindAllApps: " + appsLoaded + " apps, " + dbQueries
+                        + " icon DB queries, " + Math.max(0, appsLoaded - dbQueries) + " saved");
+            }
             mIconCache.updateDbIcons();
 
             //2. bind all apps items
             final ArrayList<AppInfo> list = new ArrayList<>(mBgAllAppsList.data);
-            Runnable r = new Runnable() {
-                public void run() {
-                    final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                    if (callbacks != null) {
-                        callbacks.bindAllApplications(list);
-                    }
+            // These are bound below, not with the next package updates.
+            mBgAllAppsList.added.clear();
+            Runnable r;
+            if (snapshot != null) {
+                // Only bind the differences with the snapshot which is already bound
+                final ArrayList<AppInfo> added = new ArrayList<>();
+                final ArrayList<AppInfo> updated = new ArrayList<>();
+                final ArrayList<AppInfo> removed = new ArrayList<>();
+                snapshot.diffApps(list, added, updated, removed);
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "loadAndBindAllApps: snapshot verified, " + added.size()
+                            + " added, " + updated.size() + " updated, " + removed.size()
+                            + " removed");
                 }
-            };
+                if (added.isEmpty() && updated.isEmpty() && removed.isEmpty()) {
+                    return list;
+                }
+                r = new Runnable() {
+                    public void run() {
+                        final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            if (!removed.isEmpty()) {
+                                callbacks.bindAppInfosRemoved(removed);
+                            }
+                            if (!added.isEmpty()) {
+                                callbacks.bindAppsAdded(added);
+                            }
+                            if (!updated.isEmpty()) {
+                                callbacks.bindAppsUpdated(updated);
+                            }
+                        }
+                    }
+                };
+            } else {
+                r = new Runnable() {
+                    public void run() {
+                        final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindAllApplications(list);
+                        }
+                    }
+                };
+            }
             boolean isRunningOnMainThread = !(sWorkerThread.getThreadId() == Process.myTid());
             if (isRunningOnMainThread) {
                 r.run();
             } else {
                 mHandler.post(r);
             }
+            return list;
+        }
+
+        /**
+         * Builds the {@link AppInfo}s to list in all apps for {@param user}, in the order of the
+         * platform. This can run on any thread, and returns early once this task is stopped.
+         */
+        @Thunk ArrayList<AppInfo> loadAllAppsForProfile(UserHandleCompat user) {
+            final ArrayList<AppInfo> result = new ArrayList<>();
+            // Query for the set of apps
+            final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
+
+            // Fail if we don't have any apps
+            // TODO: Fix this. Only fail for the current user.
+            if (apps == null || apps.isEmpty()) {
+                return result;
+            }
+
+            // Read all cached low-res icons of this user at once. Labels stored in the DB
+            // are stale after a locale change, so let each entry be resolved again then.
+            if (!mIsLocalChanged) {
+                mIconCache.prefetchLowResIcons(user);
+            }
+            boolean quietMode = mUserManager.isQuietModeEnabled(user);
+            // Create the ApplicationInfos
+            for (int i = 0; i < apps.size(); i++) {
+                if (mStopped) {
+                    // The load is dropped, stop building icons.
+                    break;
+                }
+                LauncherActivityInfoCompat app = apps.get(i);
+
+                // Apps of the packages on the workspace are not listed
+                if (!mAllowedApps.containsValidPackage(app.getComponentName().getPackageName())) {
+                    // This builds the icon bitmaps.
+                    result.add(new AppInfo(mContext, app, user, mIconCache, quietMode));
+                }
+            }
+            return result;
         }
     }
 
@@ -651,7 +821,208 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        mPackageUpdateQueue.add(task);
+    }
+
+    /**
+     * Package changes come in bursts on system updates and profile unlocks. The queue merges the
+     * changes of each package and user for a short while, then runs them as a single update of
+     * the model, bound in a single round.
+     */
+    private class PackageUpdateQueue implements Runnable {
+        private static final int OP_NONE = 0;
+
+        // The ops to run for each package and user, in order. Usually a single op.
+        private final LinkedHashMap<Pair<String, UserHandleCompat>, ArrayList<Integer>>
+                mPendingOps = new LinkedHashMap<>();
+        private final LinkedHashSet<UserHandleCompat> mPendingUserChanges = new LinkedHashSet<>();
+        private int mPendingTaskCount;
+        private boolean mScheduled;
+
+        synchronized void add(PackageUpdatedTask task) {
+            mPendingTaskCount++;
+            if (task.mOp == PackageUpdatedTask.OP_USER_AVAILABILITY_CHANGE) {
+                mPendingUserChanges.add(task.mUser);
+            } else {
+                for (String pkg : task.mPackages) {
+                    Pair<String, UserHandleCompat> key = Pair.create(pkg, task.mUser);
+                    ArrayList<Integer> ops = mPendingOps.get(key);
+                    if (ops == null) {
+                        ops = new ArrayList<>(1);
+                        mPendingOps.put(key, ops);
+                    }
+                    addOp(ops, task.mOp);
+                }
+            }
+            if (!mScheduled) {
+                mScheduled = true;
+                sWorker.postDelayed(this, PACKAGE_UPDATE_DELAY);
+            }
+        }
+
+        private void addOp(ArrayList<Integer> ops, int op) {
+            if (op == PackageUpdatedTask.OP_REMOVE) {
+                // Whatever happened before, the package is gone.
+                ops.clear();
+                ops.add(op);
+                return;
+            }
+            if (!ops.isEmpty()) {
+                int last = ops.get(ops.size() - 1);
+                int merged = mergeOps(last, op);
+                if (merged != OP_NONE) {
+                    ops.set(ops.size() - 1, merged);
+                    return;
+                }
+            }
+            ops.add(op);
+        }
+
+        /**
+         * @return the op which has the same effect as {@param first} then {@param second}, or
+         * {@link #OP_NONE} if they have to run one after the other.
+         */
+        private int mergeOps(int first, int second) {
+            boolean firstIsAdd = first == PackageUpdatedTask.OP_ADD
+                    || first == PackageUpdatedTask.OP_UPDATE;
+            boolean secondIsAdd = second == PackageUpdatedTask.OP_ADD
+                    || second == PackageUpdatedTask.OP_UPDATE;
+            if (firstIsAdd && secondIsAdd) {
+                // Updating a package also adds its new activities.
+                return first == second ? first : PackageUpdatedTask.OP_UPDATE;
+            }
+            boolean firstIsSuspend = first == PackageUpdatedTask.OP_SUSPEND
+                    || first == PackageUpdatedTask.OP_UNSUSPEND;
+            boolean secondIsSuspend = second == PackageUpdatedTask.OP_SUSPEND
+                    || second == PackageUpdatedTask.OP_UNSUSPEND;
+            if (firstIsSuspend && secondIsSuspend) {
+                return second;
+            }
+            if (second == PackageUpdatedTask.OP_UNAVAILABLE
+                    && (first == PackageUpdatedTask.OP_UNAVAILABLE
+                    || first == PackageUpdatedTask.OP_REMOVE)) {
+                return first;
+            }
+            return OP_NONE;
+        }
+
+        @Override
+        public void run() {
+            final ArrayList<Map.Entry<Pair<String, UserHandleCompat>, ArrayList<Integer>>>
+                    pendingOps;
+            final ArrayList<UserHandleCompat> userChanges;
+            final int taskCount;
+            synchronized (this) {
+                pendingOps = new ArrayList<>(mPendingOps.entrySet());
+                userChanges = new ArrayList<>(mPendingUserChanges);
+                taskCount = mPendingTaskCount;
+                mPendingOps.clear();
+                mPendingUserChanges.clear();
+                mPendingTaskCount = 0;
+                mScheduled = false;
+            }
+            if (!mHasLoaderCompletedOnce) {
+                // Loader has not yet run.
+                return;
+            }
+
+            // Run the first op of every package, then the second one of the packages which
+            // have one, and so on. Each round runs one task per op and user.
+            final ArrayList<PackageUpdatedTask> tasks = new ArrayList<>();
+            for (int round = 0; ; round++) {
+                LinkedHashMap<Pair<Integer, UserHandleCompat>, ArrayList<String>> groups =
+                        new LinkedHashMap<>();
+                for (Map.Entry<Pair<String, UserHandleCompat>, ArrayList<Integer>> entry
+                        : pendingOps) {
+                    ArrayList<Integer> ops = entry.getValue();
+                    if (round >= ops.size()) {
+                        continue;
+                    }
+                    Pair<Integer, UserHandleCompat> group =
+                            Pair.create(ops.get(round), entry.getKey().second);
+                    ArrayList<String> packages = groups.get(group);
+                    if (packages == null) {
+                        packages = new ArrayList<>();
+                        groups.put(group, packages);
+                    }
+                    packages.add(entry.getKey().first);
+                }
+                if (groups.isEmpty()) {
+                    break;
+                }
+                for (Map.Entry<Pair<Integer, UserHandleCompat>, ArrayList<String>> entry
+                        : groups.entrySet()) {
+                    ArrayList<String> packages = entry.getValue();
+                    tasks.add(new PackageUpdatedTask(entry.getKey().first,
+                            packages.toArray(new String[packages.size()]),
+                            entry.getKey().second));
+                }
+            }
+            for (UserHandleCompat user : userChanges) {
+                tasks.add(new PackageUpdatedTask(PackageUpdatedTask.OP_USER_AVAILABILITY_CHANGE,
+                        new String[0], user));
+            }
+
+            final HashMap<Integer, ComponentKey> workspaceRemoved = new HashMap<>();
+            for (PackageUpdatedTask task : tasks) {
+                task.apply(workspaceRemoved);
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "Package updates: " + taskCount + " received, "
+                        + tasks.size() + " run");
+            }
+            bindPackageUpdates(workspaceRemoved);
+        }
+    }
+
+    /**
+     * Binds the changes of all apps since the last bind, and the workspace slots of
+     * {@param workspaceRemoved}, in a single round.
+     */
+    @Thunk void bindPackageUpdates(final HashMap<Integer, ComponentKey> workspaceRemoved) {
+        final ArrayList<AppInfo> added = new ArrayList<>(mBgAllAppsList.added);
+        final ArrayList<AppInfo> removedApps = new ArrayList<>(mBgAllAppsList.removed);
+        // An app added or removed since the last bind needs no update.
+        final ArrayList<AppInfo> modified = new ArrayList<>();
+        Set<AppInfo> skipped = Collections.newSetFromMap(new IdentityHashMap<AppInfo, Boolean>());
+        skipped.addAll(added);
+        skipped.addAll(removedApps);
+        for (AppInfo info : mBgAllAppsList.modified) {
+            if (skipped.add(info)) {
+                modified.add(info);
+            }
+        }
+        mBgAllAppsList.added.clear();
+        mBgAllAppsList.modified.clear();
+        mBgAllAppsList.removed.clear();
+
+        if (workspaceRemoved.isEmpty() && added.isEmpty() && modified.isEmpty()
+                && removedApps.isEmpty()) {
+            return;
+        }
+        final Callbacks callbacks = getCallback();
+        mHandler.post(new Runnable() {
+            public void run() {
+                Callbacks cb = getCallback();
+                if (callbacks != cb || cb == null) {
+                    return;
+                }
+                // Removals first, as a package may have been removed then installed again.
+                if (!workspaceRemoved.isEmpty()) {
+                    callbacks.bindWorkspaceItemsRemoved(workspaceRemoved);
+                }
+                if (!removedApps.isEmpty()) {
+                    callbacks.bindAppInfosRemoved(removedApps);
+                }
+                if (!added.isEmpty()) {
+                    callbacks.bindAppsAdded(added);
+                }
+                //when add apps, only update all apps, ignore workspace
+                if (!modified.isEmpty()) {
+                    callbacks.bindAppsUpdated(modified);
+                }
+            }
+        });
     }
 
     @Thunk class AppsAvailabilityCheck extends BroadcastReceiver {
@@ -691,7 +1062,7 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
-    private class PackageUpdatedTask implements Runnable {
+    private class PackageUpdatedTask {
         int mOp;
         String[] mPackages;
         UserHandleCompat mUser;
@@ -710,11 +1081,11 @@ public class LauncherModel extends BroadcastReceiver
             mUser = user;
         }
 
-        public void run() {
-            if (!mHasLoaderCompletedOnce) {
-                // Loader has not yet run.
-                return;
-            }
+        /**
+         * Updates the model, without binding the changes.
+         * @param outWorkspaceRemoved the workspace slots to remove.
+         */
+        void apply(HashMap<Integer, ComponentKey> outWorkspaceRemoved) {
             final Context context = mApp.getContext();
 
             final String[] packages = mPackages;
@@ -722,6 +1093,13 @@ public class LauncherModel extends BroadcastReceiver
             StringFilter pkgFilter = StringFilter.of(new HashSet<>(Arrays.asList(packages)));
             boolean isDisabled;
 
+            final int removedBefore = mBgAllAppsList.removed.size();
+            if (mOp == OP_USER_AVAILABILITY_CHANGE) {
+                mAllowedApps.onUserAvailabilityChanged();
+            } else {
+                mAllowedApps.onPackagesChanged(packages);
+            }
+
             switch (mOp) {
                 case OP_ADD: {
                     for (int i=0; i<N; i++) {
@@ -765,40 +1143,9 @@ public class LauncherModel extends BroadcastReceiver
                     break;
             }
 
-            ArrayList<AppInfo> added = null;
-            ArrayList<AppInfo> modified = null;
-            final ArrayList<AppInfo> removedApps = new ArrayList<AppInfo>();
-
-            if (mBgAllAppsList.added.size() > 0) {
-                added = new ArrayList<>(mBgAllAppsList.added);
-                mBgAllAppsList.added.clear();
-            }
-            if (mBgAllAppsList.modified.size() > 0) {
-                modified = new ArrayList<>(mBgAllAppsList.modified);
-                mBgAllAppsList.modified.clear();
-            }
-            if (mBgAllAppsList.removed.size() > 0) {
-                removedApps.addAll(mBgAllAppsList.removed);
-                mBgAllAppsList.removed.clear();
-            }
-
-            if (added != null) {
-                addAppsToAllApps(context, added);
-            }
-
-            if (modified != null) {
-                final Callbacks callbacks = getCallback();
-                final ArrayList<AppInfo> modifiedFinal = modified;
-                //when add apps, only update all apps, ignore workspace
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsUpdated(modifiedFinal);
-                        }
-                    }
-                });
-            }
+            // The apps removed by this op, the ones of the previous ops are not bound yet.
+            final List<AppInfo> removedApps = mBgAllAppsList.removed.subList(
+                    removedBefore, mBgAllAppsList.removed.size());
 
             //remove
             final HashSet<String> removedPackages = new HashSet<>();
@@ -824,73 +1171,25 @@ public class LauncherModel extends BroadcastReceiver
             }
             Log.d(TAG, "bindWorkspaceItemsRemoved removedPackages.size: "+removedPackages.size());
             //Remove apps from Workspace
-            if(!removedPackages.isEmpty()) {
-                final HashMap<Integer, ComponentKey> removeData = new HashMap<>();
-                HashMap<Integer, ComponentKey> allowedAppMap = getAllowedAppMap(false);
-                for(String pkgName:removedPackages) {
-                    for(Map.Entry<Integer, ComponentKey> entry : allowedAppMap.entrySet()) {
-                        ComponentKey componentKey = entry.getValue();
-                        if(componentKey.componentName.getPackageName().equals(pkgName)
-                                && componentKey.user.equals(mUser)) {
-                            int position = entry.getKey();
-                            removeData.put(position, componentKey);
-
-                            //update the bg workspace data list
-                            updateWorkspaceBgDataList(position, null);
-                        }
-                    }
+            for(String pkgName:removedPackages) {
+                HashMap<Integer, ComponentKey> slots = mAllowedApps.getSlotMap(pkgName, mUser);
+                for(Map.Entry<Integer, ComponentKey> entry : slots.entrySet()) {
+                    int position = entry.getKey();
+                    outWorkspaceRemoved.put(position, entry.getValue());
+
+                    //update the bg workspace data list
+                    updateWorkspaceBgDataList(position, null);
                 }
-
-                final Callbacks callbacks = getCallback();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindWorkspaceItemsRemoved(removeData);
-                        }
-                    }
-                });
             }
 
-            if(!removedComponents.isEmpty()) {
-                final HashMap<Integer, ComponentKey> removeData = new HashMap<>();
-                HashMap<Integer, ComponentKey> allowedAppMap = getAllowedAppMap(false);
-                for(ComponentName cName:removedComponents) {
-                    for(Map.Entry<Integer, ComponentKey> entry : allowedAppMap.entrySet()) {
-                        ComponentKey componentKey = entry.getValue();
-                        if(componentKey.componentName.equals(cName)
-                                && componentKey.user.equals(mUser)) {
-                            int position = entry.getKey();
-                            removeData.put(position, componentKey);
+            for(ComponentName cName:removedComponents) {
+                ComponentKey componentKey = new ComponentKey(cName, mUser);
+                for(int position : mAllowedApps.getSlots(componentKey, false)) {
+                    outWorkspaceRemoved.put(position, componentKey);
 
-                            //update the bg workspace data list
-                            updateWorkspaceBgDataList(position, null);
-                        }
-                    }
+                    //update the bg workspace data list
+                    updateWorkspaceBgDataList(position, null);
                 }
-
-                final Callbacks callbacks = getCallback();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindWorkspaceItemsRemoved(removeData);
-                        }
-                    }
-                });
-            }
-
-            // Remove corresponding apps from All-Apps
-            if (!removedApps.isEmpty()) {
-                final Callbacks callbacks = getCallback();
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppInfosRemoved(removedApps);
-                        }
-                    }
-                });
             }
         }
     }
@@ -907,7 +1206,25 @@ public class LauncherModel extends BroadcastReceiver
                 newItemInfo = appInfo.toItemInfo();
             }
             sBgWorkspaceItems.add(position, newItemInfo);
+            updatePinnedWorkspaceIcons();
+        }
+    }
+
+    /**
+     * Keeps the icons of the current workspace items pinned in the icon cache.
+     */
+    private static void updatePinnedWorkspaceIcons() {
+        LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app == null) {
+            return;
+        }
+        ArrayList<ComponentKey> keys = new ArrayList<>(ITEM_COUNT);
+        for (ItemInfo itemInfo : sBgWorkspaceItems) {
+            if (itemInfo != null && itemInfo.componentName != null && itemInfo.user != null) {
+                keys.add(new ComponentKey(itemInfo.componentName, itemInfo.user));
+            }
         }
+        app.getIconCache().setPinnedComponents(keys);
     }
 
     public static boolean isValidPackageActivity(Context context, ComponentName cn,
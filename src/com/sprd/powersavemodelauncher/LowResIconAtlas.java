@@ -0,0 +1,207 @@
+package com.sprd.powersavemodelauncher;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Stores the low-res icons of one user at a fixed stride in a single memory mapped file, so that
+ * they can be read by copying pixels instead of reading and decoding a DB blob.
+ *
+ * Each slot holds the icon hash of the owning row and the config of the icon, followed by its
+ * pixels. Opaque icons are kept as RGB_565, like the ones decoded from the DB. The slot of a
+ * component is persisted in the icon DB, the icon hash guards against reading a slot which has
+ * since been released or reused by another component.
+ */
+class LowResIconAtlas {
+    private static final String TAG = "PowerSaveLauncher.LowResIconAtlas";
+
+    // The icon hash, then the config.
+    private static final int HEADER_SIZE = 12;
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+    private static final int MIN_SLOT_CAPACITY = 64;
+
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+
+    private final HashMap<String, Integer> mSlots = new HashMap<>();
+    private final BitSet mUsedSlots = new BitSet();
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mSlotCapacity;
+
+    LowResIconAtlas(File file, int width, int height) {
+        mFile = file;
+        mWidth = width;
+        mHeight = height;
+        mStride = HEADER_SIZE + width * height * 4;
+    }
+
+    /**
+     * Records that {@param component} is stored at {@param slot}, as read from the icon DB.
+     */
+    synchronized void restoreSlot(String component, int slot) {
+        mSlots.put(component, slot);
+        mUsedSlots.set(slot);
+    }
+
+    /**
+     * Copies the icon out of {@param slot}.
+     * @param iconHash the icon hash of the row referencing the slot.
+     * @return the icon, or null if the slot does not hold it.
+     */
+    synchronized Bitmap read(int slot, long iconHash) {
+        if (!ensureCapacity(0) || slot < 0 || slot >= mSlotCapacity) {
+            return null;
+        }
+        int offset = slot * mStride;
+        if (iconHash == 0 || mBuffer.getLong(offset) != iconHash) {
+            return null;
+        }
+        Bitmap.Config config = mBuffer.getInt(offset + 8) == CONFIG_RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap icon = Bitmap.createBitmap(mWidth, mHeight, config);
+        ByteBuffer pixels = mBuffer.duplicate();
+        pixels.position(offset + HEADER_SIZE);
+        pixels.limit(offset + HEADER_SIZE + icon.getByteCount());
+        icon.copyPixelsFromBuffer(pixels);
+        return icon;
+    }
+
+    /**
+     * Writes the icon of {@param component}, reusing its slot if it already has one. The file is
+     * synced before returning, so that the slot can be committed to the DB.
+     * @param iconHash the icon hash of the row which will reference the slot.
+     * @return the slot the icon was written to, or -1 if it could not be written.
+     */
+    synchronized int write(String component, Bitmap icon, long iconHash) {
+        if (icon.getWidth() != mWidth || icon.getHeight() != mHeight) {
+            return -1;
+        }
+        Integer slot = mSlots.get(component);
+        if (slot == null) {
+            slot = mUsedSlots.nextClearBit(0);
+        }
+        if (!ensureCapacity(slot + 1)) {
+            return -1;
+        }
+        int config = CONFIG_RGB_565;
+        if (icon.getConfig() != Bitmap.Config.RGB_565) {
+            config = CONFIG_ARGB_8888;
+            if (icon.getConfig() != Bitmap.Config.ARGB_8888) {
+                icon = icon.copy(Bitmap.Config.ARGB_8888, false);
+            }
+        }
+
+        int offset = slot * mStride;
+        ByteBuffer pixels = mBuffer.duplicate();
+        pixels.position(offset + HEADER_SIZE);
+        pixels.limit(offset + HEADER_SIZE + icon.getByteCount());
+        icon.copyPixelsToBuffer(pixels);
+        mBuffer.putInt(offset + 8, config);
+        mBuffer.putLong(offset, iconHash);
+        mBuffer.force();
+
+        mSlots.put(component, slot);
+        mUsedSlots.set(slot);
+        return slot;
+    }
+
+    /**
+     * Frees the slot of {@param component}, to be called before its row is deleted.
+     */
+    synchronized void releaseSlot(String component) {
+        Integer slot = mSlots.remove(component);
+        if (slot != null) {
+            clearSlot(slot);
+        }
+    }
+
+    /**
+     * Frees the slots of all the components of {@param packageName}.
+     */
+    synchronized void releasePackage(String packageName) {
+        String prefix = packageName + "/";
+        Iterator<Map.Entry<String, Integer>> it = mSlots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                clearSlot(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    private void clearSlot(int slot) {
+        mUsedSlots.clear(slot);
+        if (slot < mSlotCapacity && mBuffer != null) {
+            // Keep a stale row from reading the icon of the next owner of the slot.
+            mBuffer.putLong(slot * mStride, 0);
+        }
+    }
+
+    /**
+     * Frees all the slots and deletes the file, to be called when the icon table is recreated.
+     */
+    synchronized void delete() {
+        mSlots.clear();
+        mUsedSlots.clear();
+        mBuffer = null;
+        mSlotCapacity = 0;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + mFile, e);
+            }
+            mRaf = null;
+        }
+        mFile.delete();
+    }
+
+    /**
+     * Maps the file, growing it if needed so that it has at least {@param slotCount} slots.
+     */
+    private boolean ensureCapacity(int slotCount) {
+        if (mBuffer != null && slotCount <= mSlotCapacity) {
+            return true;
+        }
+        try {
+            if (mRaf == null) {
+                mRaf = new RandomAccessFile(mFile, "rw");
+            }
+            if (mBuffer != null) {
+                // The old mapping is dropped once its pending writes are synced.
+                mBuffer.force();
+                mBuffer = null;
+            }
+            int fileSlots = (int) (mRaf.length() / mStride);
+            int capacity = Math.max(fileSlots, MIN_SLOT_CAPACITY);
+            while (capacity < slotCount) {
+                capacity *= 2;
+            }
+            mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) capacity * mStride);
+            mSlotCapacity = capacity;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map " + mFile, e);
+            mSlotCapacity = 0;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.sprd.powersavemodelauncher;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
+import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
+import com.sprd.powersavemodelauncher.util.ComponentKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The last bound workspace and all apps, saved on disk so that they can be bound as soon as the
+ * process starts, before the loader has resolved the activities, the icons and the allowed apps.
+ *
+ * Only the components, users and titles are saved. The icons are read from the icon cache: the
+ * high-res icons for the workspace and the low-res ones for all apps, as the loader does.
+ */
+class ModelSnapshot {
+    private static final String TAG = "PowerSaveLauncher.ModelSnapshot";
+
+    private static final String FILE_NAME = "model_snapshot";
+    private static final int VERSION = 1;
+
+    /** The workspace slots, null for the empty ones. */
+    final ArrayList<ItemInfo> workspaceItems = new ArrayList<>();
+    final ArrayList<AppInfo> apps = new ArrayList<>();
+
+    private ModelSnapshot() {}
+
+    /**
+     * @return the saved snapshot, or null if there is none or it can't be read.
+     */
+    static ModelSnapshot read(Context context, IconCache iconCache) {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        ModelSnapshot snapshot = new ModelSnapshot();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                getFile(context).openRead()))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int workspaceCount = in.readInt();
+            for (int i = 0; i < workspaceCount; i++) {
+                ItemInfo info = null;
+                if (in.readBoolean()) {
+                    info = new ItemInfo();
+                    if (!readItem(in, info, userManager)) {
+                        info = null;
+                    } else if (!iconCache.getCachedIcon(info, false)) {
+                        info.iconBitmap = iconCache.getDefaultIcon(info.user);
+                    }
+                }
+                snapshot.workspaceItems.add(info);
+            }
+
+            int appCount = in.readInt();
+            HashSet<UserHandleCompat> prefetchedUsers = new HashSet<>();
+            for (int i = 0; i < appCount; i++) {
+                AppInfo info = new AppInfo();
+                boolean valid = readItem(in, info, userManager);
+                info.flags = in.readInt();
+                info.isDisabled = in.readInt();
+                if (!valid) {
+                    continue;
+                }
+                // Read all cached low-res icons of this user at once.
+                if (prefetchedUsers.add(info.user)) {
+                    iconCache.prefetchLowResIcons(info.user);
+                }
+                if (!iconCache.getCachedIcon(info, true)) {
+                    info.iconBitmap = iconCache.getDefaultIcon(info.user);
+                    info.usingLowResIcon = true;
+                }
+                info.intent = AppInfo.makeLaunchIntent(info.componentName,
+                        userManager.getSerialNumberForUser(info.user));
+                snapshot.apps.add(info);
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the model snapshot", e);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads the component, user and title of {@param info}.
+     * @return false if the component or the user no longer exist.
+     */
+    private static boolean readItem(DataInputStream in, ItemInfo info,
+            UserManagerCompat userManager) throws IOException {
+        info.componentName = ComponentName.unflattenFromString(in.readUTF());
+        info.user = userManager.getUserForSerialNumber(in.readLong());
+        info.title = in.readUTF();
+        if (info.componentName == null || info.user == null) {
+            return false;
+        }
+        info.contentDescription = userManager.getBadgedLabelForUser(info.title, info.user);
+        return true;
+    }
+
+    static void write(Context context, List<ItemInfo> workspaceItems, List<AppInfo> apps) {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(VERSION);
+            out.writeInt(workspaceItems.size());
+            for (ItemInfo info : workspaceItems) {
+                out.writeBoolean(info != null);
+                if (info != null) {
+                    writeItem(out, info, userManager);
+                }
+            }
+            out.writeInt(apps.size());
+            for (AppInfo info : apps) {
+                writeItem(out, info, userManager);
+                out.writeInt(info.flags);
+                out.writeInt(info.isDisabled);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the model snapshot", e);
+            file.failWrite(stream);
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, ItemInfo info,
+            UserManagerCompat userManager) throws IOException {
+        out.writeUTF(info.componentName.flattenToShortString());
+        out.writeLong(userManager.getSerialNumberForUser(info.user));
+        out.writeUTF(info.title == null ? "" : info.title.toString());
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return whether the loaded {@param items} look the same as the ones of the snapshot.
+     */
+    boolean isSameWorkspace(List<ItemInfo> items) {
+        if (items.size() != workspaceItems.size()) {
+            return false;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            ItemInfo a = items.get(i);
+            ItemInfo b = workspaceItems.get(i);
+            if (a == null || b == null ? a != b : !isSameItem(a, b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the loaded {@param loadedApps} into the apps which are not in the snapshot, the ones
+     * which look different and the apps of the snapshot which are no longer loaded.
+     */
+    void diffApps(List<AppInfo> loadedApps, ArrayList<AppInfo> outAdded,
+            ArrayList<AppInfo> outUpdated, ArrayList<AppInfo> outRemoved) {
+        HashMap<ComponentKey, AppInfo> snapshotApps = new HashMap<>();
+        for (AppInfo info : apps) {
+            snapshotApps.put(info.toComponentKey(), info);
+        }
+        for (AppInfo info : loadedApps) {
+            AppInfo old = snapshotApps.remove(info.toComponentKey());
+            if (old == null) {
+                outAdded.add(info);
+            } else if (!isSameItem(info, old) || info.isDisabled != old.isDisabled) {
+                outUpdated.add(info);
+            }
+        }
+        outRemoved.addAll(snapshotApps.values());
+    }
+
+    private static boolean isSameItem(ItemInfo a, ItemInfo b) {
+        return a.componentName.equals(b.componentName) && a.user.equals(b.user)
+                && TextUtils.equals(a.title, b.title)
+                && isSameIcon(a.iconBitmap, b.iconBitmap);
+    }
+
+    private static boolean isSameIcon(Bitmap a, Bitmap b) {
+        return a == b || (a != null && b != null && a.sameAs(b));
+    }
+}
@@ -25,18 +25,15 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.text.method.TextKeyListener;
 import android.util.Log;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 
-import com.sprd.PlatformHelper;
 import com.sprd.powersavemodelauncher.allapps.AllAppsContainerView;
 import com.sprd.powersavemodelauncher.allapps.DefaultAppSearchController;
 import com.sprd.powersavemodelauncher.compat.LauncherActivityInfoCompat;
 import com.sprd.powersavemodelauncher.compat.LauncherAppsCompat;
-import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.util.ComponentKey;
 import com.sprd.powersavemodelauncher.util.Thunk;
 
@@ -350,13 +347,10 @@ public class PowerSaveLauncher extends Activity implements View.OnClickListener,
             int position = entry.getKey();
             ComponentKey componentKey = entry.getValue();
             ComponentName componentName = componentKey.componentName;
-            String cnStr = componentName != null ? componentName.flattenToShortString() : "";
-            UserHandleCompat user = componentKey.user;
-            if (!TextUtils.isEmpty(cnStr)) {
-                String delValue = cnStr + "#" + position +
-                        "#" + Utilities.getUserSerialNumber(this, user);
-                if (PlatformHelper.delAllowedAppInUltraSavingMode(this, delValue)) {
-                    Log.d(TAG, "delete " + delValue + " from allowed app list success!");
+            if (componentName != null) {
+                if (mModel.getAllowedApps().remove(position, componentName, componentKey.user)) {
+                    Log.d(TAG, "delete " + componentName.flattenToShortString() + " at " + position
+                            + " from allowed app list success!");
 
                     //clear the selected position
                     if (mPowerSaveWorkspace != null) {
@@ -382,15 +376,13 @@ public class PowerSaveLauncher extends Activity implements View.OnClickListener,
         }
 
         if(mPowerSaveWorkspace != null) {
-            HashMap<Integer, ComponentKey> workspaceMap = mModel.getAllowedAppMap(true);
+            AllowedAppRegistry allowedApps = mModel.getAllowedApps();
             boolean isUpdated = false;
             for (AppInfo info : addedApps) {
                 ComponentKey componentKey = new ComponentKey(info.componentName,info.user);
-                for (HashMap.Entry<Integer, ComponentKey> entry : workspaceMap.entrySet()) {
-                    if (entry.getValue().equals(componentKey)) {
-                        mPowerSaveWorkspace.updateSelectedPositionItem(entry.getKey(), info);
-                        isUpdated = true;
-                    }
+                for (int position : allowedApps.getSlots(componentKey, true)) {
+                    mPowerSaveWorkspace.updateSelectedPositionItem(position, info);
+                    isUpdated = true;
                 }
             }
             if (isUpdated) {
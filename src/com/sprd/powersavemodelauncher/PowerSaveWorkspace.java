@@ -115,10 +115,9 @@ public class PowerSaveWorkspace extends LinearLayout implements  View.OnClickLis
                 //remove data from workspace
                 ItemInfo itemInfo = mWorkspaceItem.get(position);
                 if(itemInfo != null) {
-                    String delValue = itemInfo.componentName.flattenToShortString() + "#" + position
-                            + "#" + Utilities.getUserSerialNumber(mPowerSaveLauncher, itemInfo.user);
-                    if(PlatformHelper.delAllowedAppInUltraSavingMode(mPowerSaveLauncher, delValue)) {
-                        Log.d(TAG, "delete " + delValue + " from allowed app list success!");
+                    if(getAllowedApps().remove(position, itemInfo.componentName, itemInfo.user)) {
+                        Log.d(TAG, "delete " + itemInfo.componentName.flattenToShortString()
+                                + " at " + position + " from allowed app list success!");
 
                         //clear the selected position
                         updateSelectedPositionItem(position, null);
@@ -269,11 +268,9 @@ public class PowerSaveWorkspace extends LinearLayout implements  View.OnClickLis
         int position = mPositionClickToApps;
         ComponentName cn = appInfo.componentName;
         if(cn != null) {
-            String addValue = cn.flattenToShortString()+"#"+position+
-                    "#"+ Utilities.getUserSerialNumber(mPowerSaveLauncher,appInfo.user);
-
-            if(PlatformHelper.addAllowedAppInUltraSavingMode(mPowerSaveLauncher,addValue)) {
-                Log.d(TAG, "add "+ addValue +" to allowed app list success!");
+            if(getAllowedApps().add(position, cn, appInfo.user)) {
+                Log.d(TAG, "add " + cn.flattenToShortString() + " at " + position
+                        + " to allowed app list success!");
                 updateSelectedPositionItem(position, appInfo);
                 //update the bg workspace data list
                 LauncherModel.updateWorkspaceBgDataList(position, appInfo);
@@ -282,6 +279,10 @@ public class PowerSaveWorkspace extends LinearLayout implements  View.OnClickLis
         }
     }
 
+    private AllowedAppRegistry getAllowedApps() {
+        return LauncherAppState.getInstance(mPowerSaveLauncher).getModel().getAllowedApps();
+    }
+
     public List<Integer> getReadyToRemovePositions() {
         return mReadyToRemoveAppPositions;
     }
@@ -303,12 +304,13 @@ public class PowerSaveWorkspace extends LinearLayout implements  View.OnClickLis
     }
 
     void synchronousUltraSavingIfNeeded() {
-        List<String> allowedAppList = PlatformHelper.getAllowedAppListInUltraSavingMode(mPowerSaveLauncher);
+        AllowedAppRegistry allowedApps = getAllowedApps();
+        List<String> allowedAppList = allowedApps.getEntries();
         int count = getWorkspaceSelectedItemCount();
         if(allowedAppList.size() != count) {
             //clear the original list
             for(String value:allowedAppList) {
-                if (PlatformHelper.delAllowedAppInUltraSavingMode(mPowerSaveLauncher, value)) {
+                if (allowedApps.removeEntry(value)) {
                     Log.d(TAG, "synchronousUltraSaving, delAllowedApp "+value+ " success.");
                 }
             }
@@ -317,15 +319,14 @@ public class PowerSaveWorkspace extends LinearLayout implements  View.OnClickLis
             for(int i = 0; i < mWorkspaceItem.size(); i++) {
                 ItemInfo info = mWorkspaceItem.get(i);
                 if(info != null) {
-                    String addValue = info.componentName.flattenToShortString()+"#"+i
-                            +"#"+Utilities.getUserSerialNumber(mPowerSaveLauncher,info.user);
-                    if (PlatformHelper.addAllowedAppInUltraSavingMode(mPowerSaveLauncher, addValue)) {
-                        Log.d(TAG, "synchronousUltraSaving, addAllowedApp " +addValue+" success.");
+                    if (allowedApps.add(i, info.componentName, info.user)) {
+                        Log.d(TAG, "synchronousUltraSaving, addAllowedApp "
+                                + info.componentName.flattenToShortString() + " success.");
                     }
                 }
             }
 
-            List<String> list = PlatformHelper.getAllowedAppListInUltraSavingMode(mPowerSaveLauncher);
+            List<String> list = allowedApps.getEntries();
             Log.d(TAG, "allowedAppList after synchronous is "+ list.size() +
                     ", equal to workspace item size: "+count);
         }
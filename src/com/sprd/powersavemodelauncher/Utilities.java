@@ -31,15 +31,13 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.util.TypedValue;
 import android.view.View;
 
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
+import com.sprd.powersavemodelauncher.graphics.IconCodec;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
 import java.util.regex.Matcher;
@@ -70,28 +68,19 @@ public final class Utilities {
     public static final boolean ATLEAST_OREO =
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
 
+    public static final boolean ATLEAST_Q =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
     public static boolean LAUNCHER3_DISABLE_ICON_NORMALIZATION = false;
 
     public static final boolean LEGACY_ICON_TREATMENT = true;
 
 
     /**
-     * Compresses the bitmap to a byte array for serialization.
+     * Compresses the bitmap to a PNG byte array for serialization.
      */
     public static byte[] flattenBitmap(Bitmap bitmap) {
-        // Try go guesstimate how much space the icon will take when serialized
-        // to avoid unnecessary allocations/copies during the write.
-        int size = bitmap.getWidth() * bitmap.getHeight() * 4;
-        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
-        try {
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
-            out.flush();
-            out.close();
-            return out.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG, "Could not write bitmap");
-            return null;
-        }
+        return IconCodec.PNG.encode(bitmap);
     }
 
     /**
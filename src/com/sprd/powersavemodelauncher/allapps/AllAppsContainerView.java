@@ -148,6 +148,14 @@ public class AllAppsContainerView extends BaseContainerView implements
     // This coordinate is relative to its parent
     private final Point mIconLastTouchPos = new Point();
 
+    // Run once the adapter items with the new search results are set
+    private final Runnable mOnSearchResultsChanged = new Runnable() {
+        @Override
+        public void run() {
+            mAppsRecyclerView.onSearchResultsChanged();
+        }
+    };
+
     public AllAppsContainerView(Context context) {
         this(context, null);
     }
@@ -474,18 +482,14 @@ public class AllAppsContainerView extends BaseContainerView implements
     @Override
     public void onSearchResult(String query, ArrayList<ComponentKey> apps) {
         if (apps != null) {
-            if (mApps.setOrderedFilter(apps)) {
-                mAppsRecyclerView.onSearchResultsChanged();
-            }
+            mApps.setOrderedFilter(apps, mOnSearchResultsChanged);
             mAdapter.setLastSearchQuery(query);
         }
     }
 
     @Override
     public void clearSearchResult() {
-        if (mApps.setOrderedFilter(null)) {
-            mAppsRecyclerView.onSearchResultsChanged();
-        }
+        mApps.setOrderedFilter(null, mOnSearchResultsChanged);
 
         // Clear the search query
         mSearchQueryBuilder.clear();
@@ -16,7 +16,13 @@
 package com.sprd.powersavemodelauncher.allapps;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.sprd.powersavemodelauncher.AppInfo;
@@ -24,14 +30,17 @@ import com.sprd.powersavemodelauncher.compat.AlphabeticIndexCompat;
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 import com.sprd.powersavemodelauncher.model.AppNameComparator;
 import com.sprd.powersavemodelauncher.util.ComponentKey;
+import com.sprd.powersavemodelauncher.util.Thunk;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The alphabetically sorted list of applications.
@@ -47,6 +56,10 @@ public class AlphabeticalAppsList {
 
     private static final int sFastScrollDistributionMode = FAST_SCROLL_FRACTION_DISTRIBUTE_BY_NUM_SECTIONS;
 
+    // Above this fraction of the apps, a batch is sorted with the other apps instead of inserted
+    // one app at a time.
+    private static final int MAX_INCREMENTAL_UPDATE_FRACTION = 4;
+
     /**
      * Info about a section in the alphabetic list
      */
@@ -164,34 +177,105 @@ public class AlphabeticalAppsList {
                 int sectionAppCount, int numAppsPerRow, int mergeCount);
     }
 
+    /**
+     * The adapter model, built off the main thread and then swapped in on the main thread.
+     * Everything the adapter and the recycler view read comes from the same snapshot, so that
+     * they stay consistent until the next snapshot is swapped in.
+     */
+    private static class AdapterSnapshot {
+        // Whether the snapshot was built with a search filter
+        final boolean hasFilter;
+        // The set of filtered apps with the filter of the snapshot
+        final List<AppInfo> filteredApps;
+        // The adapter items
+        final List<AdapterItem> adapterItems;
+        // The set of sections for the filtered apps
+        final List<SectionInfo> sections;
+        // The set of sections that we allow fast-scrolling to (includes non-merged sections)
+        final List<FastScrollSectionInfo> fastScrollerSections;
+        // The number of rows of applications (not including predictions)
+        final int numAppRows;
+
+        AdapterSnapshot(boolean hasFilter, List<AppInfo> filteredApps,
+                List<AdapterItem> adapterItems, List<SectionInfo> sections,
+                List<FastScrollSectionInfo> fastScrollerSections, int numAppRows) {
+            this.hasFilter = hasFilter;
+            this.filteredApps = Collections.unmodifiableList(filteredApps);
+            this.adapterItems = Collections.unmodifiableList(adapterItems);
+            this.sections = Collections.unmodifiableList(sections);
+            this.fastScrollerSections = Collections.unmodifiableList(fastScrollerSections);
+            this.numAppRows = numAppRows;
+        }
+    }
+
+    /**
+     * What an adapter snapshot is built from, captured on the main thread.
+     */
+    private static class SnapshotRequest {
+        int generation;
+        boolean hasFilter;
+        // The filtered apps in order, not including predictions
+        List<AppInfo> apps;
+        // The titles of the apps, as the model may change them in place while the snapshot is
+        // being built
+        List<CharSequence> titles;
+        // The predicted apps resolved from the component names and the current set of apps
+        List<AppInfo> predictedApps;
+        MergeAlgorithm mergeAlgorithm;
+        int numAppsPerRow;
+    }
+
+    // Builds the adapter snapshots, shared by all the lists
+    private static final HandlerThread sWorkerThread = new HandlerThread("all-apps-adapter",
+            Process.THREAD_PRIORITY_FOREGROUND);
+    static {
+        sWorkerThread.start();
+    }
+    private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
+
+    /**
+     * Returns the looper the adapter snapshots are built on.
+     */
+    @VisibleForTesting
+    static Looper getWorkerLooper() {
+        return sWorkerThread.getLooper();
+    }
+
     private Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
+    // The titles the apps were sorted by, in the same order. The model changes the titles in
+    // place, after which the apps have to be sorted again before they can be searched.
+    private final List<CharSequence> mSortedTitles = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
 
-    // The set of filtered apps with the current filter
-    private List<AppInfo> mFilteredApps = new ArrayList<>();
-    // The current set of adapter items
-    private List<AdapterItem> mAdapterItems = new ArrayList<>();
-    // The set of sections for the apps with the current filter
-    private List<SectionInfo> mSections = new ArrayList<>();
-    // The set of sections that we allow fast-scrolling to (includes non-merged sections)
-    private List<FastScrollSectionInfo> mFastScrollerSections = new ArrayList<>();
+    // The current adapter model, only accessed on the main thread
+    private AdapterSnapshot mSnapshot = new AdapterSnapshot(false, new ArrayList<AppInfo>(),
+            new ArrayList<AdapterItem>(), new ArrayList<SectionInfo>(),
+            new ArrayList<FastScrollSectionInfo>(), 0);
+    // The last requested snapshot, the older ones are dropped when it is posted
+    private final AtomicInteger mSnapshotGeneration = new AtomicInteger();
+    // Whether the pending snapshots require notifying the whole data set
+    private boolean mPendingFullNotify;
+    // The apps updated since the last snapshot, whose items are notified even if they look the
+    // same, as their icon, title or state may have been changed in place
+    private final HashSet<ComponentKey> mPendingChangedApps = new HashSet<>();
+    // Run on the main thread once the snapshot with the new search results is swapped in
+    private Runnable mPendingFilterCallback;
     // The set of predicted app component names
     private List<ComponentKey> mPredictedAppComponents = new ArrayList<>();
-    // The set of predicted apps resolved from the component names and the current set of apps
-    private List<AppInfo> mPredictedApps = new ArrayList<>();
     // The of ordered component names as a result of a search query
     private ArrayList<ComponentKey> mSearchResults;
-    private HashMap<CharSequence, String> mCachedSectionNames = new HashMap<>();
+    // Accessed from both threads, guarded by mIndexer
+    private final HashMap<CharSequence, String> mCachedSectionNames = new HashMap<>();
     private RecyclerView.Adapter mAdapter;
-    private AlphabeticIndexCompat mIndexer;
+    private final AlphabeticIndexCompat mIndexer;
     private AppNameComparator mAppNameComparator;
     private MergeAlgorithm mMergeAlgorithm;
     private int mNumAppsPerRow;
     private int mNumPredictedAppsPerRow;
-    private int mNumAppRowsInAdapter;
 
     public AlphabeticalAppsList(Context context) {
         mContext = context;
@@ -229,49 +313,49 @@ public class AlphabeticalAppsList {
      * Returns sections of all the current filtered applications.
      */
     public List<SectionInfo> getSections() {
-        return mSections;
+        return mSnapshot.sections;
     }
 
     /**
      * Returns fast scroller sections of all the current filtered applications.
      */
     public List<FastScrollSectionInfo> getFastScrollerSections() {
-        return mFastScrollerSections;
+        return mSnapshot.fastScrollerSections;
     }
 
     /**
      * Returns the current filtered list of applications broken down into their sections.
      */
     public List<AdapterItem> getAdapterItems() {
-        return mAdapterItems;
+        return mSnapshot.adapterItems;
     }
 
     /**
      * Returns the number of rows of applications (not including predictions)
      */
     public int getNumAppRows() {
-        return mNumAppRowsInAdapter;
+        return mSnapshot.numAppRows;
     }
 
     /**
      * Returns the number of applications in this list.
      */
     public int getNumFilteredApps() {
-        return mFilteredApps.size();
+        return mSnapshot.filteredApps.size();
     }
 
     /**
-     * Returns whether there are is a filter set.
+     * Returns whether there are is a filter set in the current adapter items.
      */
     public boolean hasFilter() {
-        return (mSearchResults != null);
+        return mSnapshot.hasFilter;
     }
 
     /**
      * Returns whether there are no filtered results.
      */
     public boolean hasNoFilteredResults() {
-        return (mSearchResults != null) && mFilteredApps.isEmpty();
+        return mSnapshot.hasFilter && mSnapshot.filteredApps.isEmpty();
     }
 
     public boolean hasPredictedComponents() {
@@ -280,11 +364,18 @@ public class AlphabeticalAppsList {
 
     /**
      * Sets the sorted list of filtered components.
+     *
+     * @param onFilterApplied run once the adapter items with the filter are set, if the filtered
+     *                        components changed.
+     * @return whether the filtered components changed.
      */
-    public boolean setOrderedFilter(ArrayList<ComponentKey> f) {
+    public boolean setOrderedFilter(ArrayList<ComponentKey> f, Runnable onFilterApplied) {
         if (mSearchResults != f) {
             boolean same = mSearchResults != null && mSearchResults.equals(f);
             mSearchResults = f;
+            if (!same) {
+                mPendingFilterCallback = onFilterApplied;
+            }
             updateAdapterItems();
             return !same;
         }
@@ -293,12 +384,12 @@ public class AlphabeticalAppsList {
 
     /**
      * Sets the current set of predicted apps.  Since this can be called before we get the full set
-     * of applications, we should merge the results only in onAppsUpdated() which is idempotent.
+     * of applications, the predicted apps are resolved each time the adapter items are updated.
      */
     public void setPredictedApps(List<ComponentKey> apps) {
         mPredictedAppComponents.clear();
         mPredictedAppComponents.addAll(apps);
-        onAppsUpdated();
+        updateAdapterItems(true /* notifyChangedRanges */);
     }
 
     /**
@@ -306,7 +397,10 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+        }
+        onAppsUpdated();
     }
 
     /**
@@ -320,20 +414,97 @@ public class AlphabeticalAppsList {
      * Updates existing apps in the list
      */
     public void updateApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps.size());
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            ComponentKey key = app.toComponentKey();
+            AppInfo oldApp = mComponentToAppMap.put(key, app);
+            if (incremental) {
+                if (oldApp != null) {
+                    removeSorted(oldApp);
+                    mPendingChangedApps.add(key);
+                }
+                insertSorted(app);
+            }
+        }
+        if (incremental) {
+            updateAdapterItems(true /* notifyChangedRanges */);
+        } else {
+            onAppsUpdated();
         }
-        onAppsUpdated();
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps.size());
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            AppInfo oldApp = mComponentToAppMap.remove(app.toComponentKey());
+            if (incremental && oldApp != null) {
+                removeSorted(oldApp);
+            }
+        }
+        if (incremental) {
+            updateAdapterItems(true /* notifyChangedRanges */);
+        } else {
+            onAppsUpdated();
+        }
+    }
+
+    /**
+     * Returns whether {@param numApps} apps can be inserted or removed in the sorted list of apps,
+     * instead of sorting all the apps again.
+     */
+    private boolean canUpdateIncrementally(int numApps) {
+        // Sections may have to be reordered, see onAppsUpdated()
+        return !localeRequiresSectionSorting()
+                && numApps * MAX_INCREMENTAL_UPDATE_FRACTION <= mApps.size()
+                && !hasTitleChangedInPlace();
+    }
+
+    /**
+     * Returns whether the title of any app was changed since the apps were sorted, in which case
+     * they are no longer sorted.
+     */
+    private boolean hasTitleChangedInPlace() {
+        for (int i = 0; i < mApps.size(); i++) {
+            if (!TextUtils.equals(mApps.get(i).title, mSortedTitles.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        Locale curLocale = mContext.getResources().getConfiguration().locale;
+        return curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+    }
+
+    /**
+     * Inserts {@param app} at its position in the sorted list of apps.
+     */
+    private void insertSorted(AppInfo app) {
+        int index = Collections.binarySearch(mApps, app, mAppNameComparator.getAppInfoComparator());
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        mApps.add(index, app);
+        mSortedTitles.add(index, app.title);
+    }
+
+    /**
+     * Removes {@param app} from the sorted list of apps.
+     */
+    private void removeSorted(AppInfo app) {
+        int index = Collections.binarySearch(mApps, app, mAppNameComparator.getAppInfoComparator());
+        if (index < 0 || mApps.get(index) != app) {
+            // Another app with the same sort key
+            index = mApps.indexOf(app);
+        }
+        if (index >= 0) {
+            mApps.remove(index);
+            mSortedTitles.remove(index);
         }
-        onAppsUpdated();
     }
 
     /**
@@ -347,13 +518,12 @@ public class AlphabeticalAppsList {
 
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mContext.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap = null;
-        boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
-        if (localeRequiresSectionSorting) {
+        if (localeRequiresSectionSorting()) {
             // Compute the section headers.  We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
             sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
+            updateCachedSectionNames(getTitles(mApps));
             for (AppInfo info : mApps) {
                 // Add the section to the cache
                 String sectionName = getAndUpdateCachedSectionName(info.title);
@@ -375,34 +545,29 @@ public class AlphabeticalAppsList {
 
             mApps.clear();
             mApps.addAll(allApps);
-        } else {
-            // Just compute the section headers for use below
-            for (AppInfo info : mApps) {
-                // Add the section to the cache
-                getAndUpdateCachedSectionName(info.title);
-            }
         }
+        mSortedTitles.clear();
+        mSortedTitles.addAll(getTitles(mApps));
 
         // Recompose the set of adapter items from the current set of apps
         updateAdapterItems();
     }
 
-    /**
-     * Updates the set of filtered apps with the current filter.  At this point, we expect
-     * mCachedSectionNames to have been calculated for the set of all apps in mApps.
-     */
     private void updateAdapterItems() {
-        SectionInfo lastSectionInfo = null;
-        String lastSectionName = null;
-        FastScrollSectionInfo lastFastScrollerSectionInfo = null;
-        int position = 0;
-        int appIndex = 0;
+        updateAdapterItems(false /* notifyChangedRanges */);
+    }
 
-        // Prepare to update the list of sections, filtered apps, etc.
-        mFilteredApps.clear();
-        mFastScrollerSections.clear();
-        mAdapterItems.clear();
-        mSections.clear();
+    /**
+     * Requests new adapter items for the current apps, filter and predictions. The items are
+     * built off the main thread and set on the main thread, see {@link #applySnapshot}.
+     *
+     * @param notifyChangedRanges whether to only notify the adapter of the items which changed,
+     *                            instead of the whole data set.
+     */
+    private void updateAdapterItems(boolean notifyChangedRanges) {
+        if (!notifyChangedRanges) {
+            mPendingFullNotify = true;
+        }
 
         if (DEBUG_PREDICTIONS) {
             if (mPredictedAppComponents.isEmpty() && !mApps.isEmpty()) {
@@ -417,62 +582,123 @@ public class AlphabeticalAppsList {
             }
         }
 
-        // Process the predicted app components
-        mPredictedApps.clear();
-        if (mPredictedAppComponents != null && !mPredictedAppComponents.isEmpty() && !hasFilter()) {
-            for (ComponentKey ck : mPredictedAppComponents) {
-                AppInfo info = mComponentToAppMap.get(ck);
-                if (info != null) {
-                    mPredictedApps.add(info);
-                } else {
-                    Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mContext));
-                }
-                // Stop at the number of predicted apps
-                if (mPredictedApps.size() == mNumPredictedAppsPerRow) {
-                    break;
+        // Capture the inputs, the lists may change before the snapshot is built
+        final SnapshotRequest request = new SnapshotRequest();
+        request.generation = mSnapshotGeneration.incrementAndGet();
+        request.hasFilter = mSearchResults != null;
+        request.apps = getFiltersAppInfos();
+        request.titles = getTitles(request.apps);
+        request.predictedApps = getPredictedApps();
+        request.mergeAlgorithm = mMergeAlgorithm;
+        request.numAppsPerRow = mNumAppsPerRow;
+
+        sWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request.generation != mSnapshotGeneration.get()) {
+                    // A newer snapshot was requested since
+                    return;
                 }
+                final AdapterSnapshot snapshot = buildSnapshot(request);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request.generation == mSnapshotGeneration.get()) {
+                            applySnapshot(snapshot);
+                        }
+                    }
+                });
             }
+        });
+    }
 
-            if (!mPredictedApps.isEmpty()) {
-                // Add a section for the predictions
-                lastSectionInfo = new SectionInfo();
-                lastFastScrollerSectionInfo = new FastScrollSectionInfo("");
-                AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
-                mSections.add(lastSectionInfo);
-                mFastScrollerSections.add(lastFastScrollerSectionInfo);
-                mAdapterItems.add(sectionItem);
-
-                // Add the predicted app items
-                for (AppInfo info : mPredictedApps) {
-                    AdapterItem appItem = AdapterItem.asPredictedApp(position++, lastSectionInfo,
-                            "", lastSectionInfo.numApps++, info, appIndex++);
-                    if (lastSectionInfo.firstAppItem == null) {
-                        lastSectionInfo.firstAppItem = appItem;
-                        lastFastScrollerSectionInfo.fastScrollToItem = appItem;
-                    }
-                    mAdapterItems.add(appItem);
-                    mFilteredApps.add(info);
+    /**
+     * Swaps in {@param snapshot} and notifies the adapter.
+     */
+    @Thunk void applySnapshot(AdapterSnapshot snapshot) {
+        AdapterSnapshot oldSnapshot = mSnapshot;
+        mSnapshot = snapshot;
+        boolean fullNotify = mPendingFullNotify;
+        mPendingFullNotify = false;
+
+        // Refresh the recycler view
+        if (mAdapter != null) {
+            if (fullNotify) {
+                mAdapter.notifyDataSetChanged();
+            } else {
+                notifyChangedRanges(oldSnapshot.adapterItems, snapshot.adapterItems);
+                notifyChangedApps(snapshot.adapterItems);
+            }
+        }
+        mPendingChangedApps.clear();
+
+        Runnable filterCallback = mPendingFilterCallback;
+        mPendingFilterCallback = null;
+        if (filterCallback != null) {
+            filterCallback.run();
+        }
+    }
+
+    /**
+     * Builds the adapter items for {@param request}, off the main thread. At this point, the
+     * section names are computed as needed.
+     */
+    @Thunk AdapterSnapshot buildSnapshot(SnapshotRequest request) {
+        final boolean hasFilter = request.hasFilter;
+        final int numAppsPerRow = request.numAppsPerRow;
+        SectionInfo lastSectionInfo = null;
+        String lastSectionName = null;
+        FastScrollSectionInfo lastFastScrollerSectionInfo = null;
+        int position = 0;
+        int appIndex = 0;
+
+        List<AppInfo> filteredApps = new ArrayList<>(request.apps.size());
+        List<AdapterItem> adapterItems = new ArrayList<>(request.apps.size() * 2);
+        List<SectionInfo> sections = new ArrayList<>();
+        List<FastScrollSectionInfo> fastScrollerSections = new ArrayList<>();
+
+        // Process the predicted apps
+        if (!request.predictedApps.isEmpty()) {
+            // Add a section for the predictions
+            lastSectionInfo = new SectionInfo();
+            lastFastScrollerSectionInfo = new FastScrollSectionInfo("");
+            AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
+            sections.add(lastSectionInfo);
+            fastScrollerSections.add(lastFastScrollerSectionInfo);
+            adapterItems.add(sectionItem);
+
+            // Add the predicted app items
+            for (AppInfo info : request.predictedApps) {
+                AdapterItem appItem = AdapterItem.asPredictedApp(position++, lastSectionInfo,
+                        "", lastSectionInfo.numApps++, info, appIndex++);
+                if (lastSectionInfo.firstAppItem == null) {
+                    lastSectionInfo.firstAppItem = appItem;
+                    lastFastScrollerSectionInfo.fastScrollToItem = appItem;
                 }
+                adapterItems.add(appItem);
+                filteredApps.add(info);
             }
         }
 
         // Recreate the filtered and sectioned apps (for convenience for the grid layout) from the
         // ordered set of sections
-        for (AppInfo info : getFiltersAppInfos()) {
-            String sectionName = getAndUpdateCachedSectionName(info.title);
+        updateCachedSectionNames(request.titles);
+        for (int i = 0; i < request.apps.size(); i++) {
+            AppInfo info = request.apps.get(i);
+            String sectionName = getAndUpdateCachedSectionName(request.titles.get(i));
 
             // Create a new section if the section names do not match
             if (lastSectionInfo == null || !sectionName.equals(lastSectionName)) {
                 lastSectionName = sectionName;
                 lastSectionInfo = new SectionInfo();
                 lastFastScrollerSectionInfo = new FastScrollSectionInfo(sectionName);
-                mSections.add(lastSectionInfo);
-                mFastScrollerSections.add(lastFastScrollerSectionInfo);
+                sections.add(lastSectionInfo);
+                fastScrollerSections.add(lastFastScrollerSectionInfo);
 
                 // Create a new section item to break the flow of items in the list
-                if (!hasFilter()) {
+                if (!hasFilter) {
                     AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
-                    mAdapterItems.add(sectionItem);
+                    adapterItems.add(sectionItem);
                 }
             }
 
@@ -483,36 +709,40 @@ public class AlphabeticalAppsList {
                 lastSectionInfo.firstAppItem = appItem;
                 lastFastScrollerSectionInfo.fastScrollToItem = appItem;
             }
-            mAdapterItems.add(appItem);
-            mFilteredApps.add(info);
+            adapterItems.add(appItem);
+            filteredApps.add(info);
         }
 
         // Append the search market item if we are currently searching
-        if (hasFilter()) {
-            if (hasNoFilteredResults()) {
-                mAdapterItems.add(AdapterItem.asEmptySearch(position++));
+        if (hasFilter) {
+            if (filteredApps.isEmpty()) {
+                adapterItems.add(AdapterItem.asEmptySearch(position++));
             } else {
-                mAdapterItems.add(AdapterItem.asDivider(position++));
+                adapterItems.add(AdapterItem.asDivider(position++));
             }
-            mAdapterItems.add(AdapterItem.asMarketSearch(position++));
+            adapterItems.add(AdapterItem.asMarketSearch(position++));
         }
 
         // Merge multiple sections together as requested by the merge strategy for this device
-        mergeSections();
+        if (!hasFilter) {
+            adapterItems = mergeSections(sections, adapterItems, request.mergeAlgorithm,
+                    numAppsPerRow);
+        }
 
-        if (mNumAppsPerRow != 0) {
+        int numAppRows = 0;
+        if (numAppsPerRow != 0) {
             // Update the number of rows in the adapter after we do all the merging (otherwise, we
             // would have to shift the values again)
             int numAppsInSection = 0;
             int numAppsInRow = 0;
             int rowIndex = -1;
-            for (AdapterItem item : mAdapterItems) {
+            for (AdapterItem item : adapterItems) {
                 item.rowIndex = 0;
                 if (item.viewType == AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE) {
                     numAppsInSection = 0;
                 } else if (item.viewType == AllAppsGridAdapter.ICON_VIEW_TYPE ||
                         item.viewType == AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE) {
-                    if (numAppsInSection % mNumAppsPerRow == 0) {
+                    if (numAppsInSection % numAppsPerRow == 0) {
                         numAppsInRow = 0;
                         rowIndex++;
                     }
@@ -522,13 +752,13 @@ public class AlphabeticalAppsList {
                     numAppsInRow++;
                 }
             }
-            mNumAppRowsInAdapter = rowIndex + 1;
+            numAppRows = rowIndex + 1;
 
             // Pre-calculate all the fast scroller fractions
             switch (sFastScrollDistributionMode) {
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_ROWS_FRACTION:
-                    float rowFraction = 1f / mNumAppRowsInAdapter;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    float rowFraction = 1f / numAppRows;
+                    for (FastScrollSectionInfo info : fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (item.viewType != AllAppsGridAdapter.ICON_VIEW_TYPE &&
                                 item.viewType != AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE) {
@@ -536,14 +766,14 @@ public class AlphabeticalAppsList {
                             continue;
                         }
 
-                        float subRowFraction = item.rowAppIndex * (rowFraction / mNumAppsPerRow);
+                        float subRowFraction = item.rowAppIndex * (rowFraction / numAppsPerRow);
                         info.touchFraction = item.rowIndex * rowFraction + subRowFraction;
                     }
                     break;
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_NUM_SECTIONS:
-                    float perSectionTouchFraction = 1f / mFastScrollerSections.size();
+                    float perSectionTouchFraction = 1f / fastScrollerSections.size();
                     float cumulativeTouchFraction = 0f;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    for (FastScrollSectionInfo info : fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (item.viewType != AllAppsGridAdapter.ICON_VIEW_TYPE &&
                                 item.viewType != AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE) {
@@ -557,15 +787,72 @@ public class AlphabeticalAppsList {
             }
         }
 
-        // Refresh the recycler view
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+        return new AdapterSnapshot(hasFilter, filteredApps, adapterItems, sections,
+                fastScrollerSections, numAppRows);
+    }
+
+    /**
+     * Notifies the adapter of the range of items between the items which are the same at the
+     * start and at the end of both lists. Updates only change a few apps, so this range is small.
+     */
+    private void notifyChangedRanges(List<AdapterItem> oldItems, List<AdapterItem> newItems) {
+        int oldSize = oldItems.size();
+        int newSize = newItems.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && isSameItem(oldItems.get(start), newItems.get(start))) {
+            start++;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && isSameItem(oldItems.get(oldEnd - 1), newItems.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        int numChanged = Math.min(oldEnd, newEnd) - start;
+        if (numChanged > 0) {
+            mAdapter.notifyItemRangeChanged(start, numChanged);
+        }
+        if (newEnd > oldEnd) {
+            mAdapter.notifyItemRangeInserted(start + numChanged, newEnd - oldEnd);
+        } else if (oldEnd > newEnd) {
+            mAdapter.notifyItemRangeRemoved(start + numChanged, oldEnd - newEnd);
+        }
+    }
+
+    /**
+     * Notifies the adapter of the items of the updated apps. The updated apps may be the same
+     * objects as before, so they are not found by {@link #notifyChangedRanges}.
+     */
+    private void notifyChangedApps(List<AdapterItem> items) {
+        if (mPendingChangedApps.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            AppInfo info = items.get(i).appInfo;
+            if (info != null && mPendingChangedApps.contains(info.toComponentKey())) {
+                mAdapter.notifyItemChanged(i);
+            }
         }
     }
 
+    /**
+     * Returns whether the two items are bound to the same view content. Row indices are not
+     * compared, the layout manager lays out the rows again.
+     */
+    private static boolean isSameItem(AdapterItem oldItem, AdapterItem newItem) {
+        return oldItem.viewType == newItem.viewType && oldItem.appInfo == newItem.appInfo
+                && TextUtils.equals(oldItem.sectionName, newItem.sectionName);
+    }
+
+    /**
+     * Returns a copy of the apps matching the current filter, in order.
+     */
     private List<AppInfo> getFiltersAppInfos() {
         if (mSearchResults == null) {
-            return mApps;
+            return new ArrayList<>(mApps);
         }
 
         ArrayList<AppInfo> result = new ArrayList<>();
@@ -579,70 +866,155 @@ public class AlphabeticalAppsList {
     }
 
     /**
-     * Merges multiple sections to reduce visual raggedness.
+     * Returns the predicted apps resolved from the component names and the current set of apps.
      */
-    private void mergeSections() {
+    private List<AppInfo> getPredictedApps() {
+        ArrayList<AppInfo> predictedApps = new ArrayList<>();
+        if (mPredictedAppComponents != null && !mPredictedAppComponents.isEmpty()
+                && mSearchResults == null) {
+            for (ComponentKey ck : mPredictedAppComponents) {
+                AppInfo info = mComponentToAppMap.get(ck);
+                if (info != null) {
+                    predictedApps.add(info);
+                } else {
+                    Log.e(TAG, "Predicted app not found: " + ck.flattenToString(mContext));
+                }
+                // Stop at the number of predicted apps
+                if (predictedApps.size() == mNumPredictedAppsPerRow) {
+                    break;
+                }
+            }
+        }
+        return predictedApps;
+    }
+
+    /**
+     * Merges multiple sections to reduce visual raggedness. This is a single pass over the
+     * sections and the items, which are copied to a new list without the merged section breaks.
+     *
+     * @param sections the sections of {@param adapterItems}, replaced by the merged sections.
+     * @return the merged adapter items, with their positions updated.
+     */
+    @VisibleForTesting
+    static List<AdapterItem> mergeSections(List<SectionInfo> sections,
+            List<AdapterItem> adapterItems, MergeAlgorithm mergeAlgorithm, int numAppsPerRow) {
         // Ignore merging until we have an algorithm and a valid row size
-        if (mMergeAlgorithm == null || mNumAppsPerRow == 0) {
-            return;
+        if (mergeAlgorithm == null || numAppsPerRow == 0) {
+            return adapterItems;
         }
 
-        // Go through each section and try and merge some of the sections
-        if (!hasFilter()) {
-            int sectionAppCount = 0;
-            for (int i = 0; i < mSections.size() - 1; i++) {
-                SectionInfo section = mSections.get(i);
-                sectionAppCount = section.numApps;
-                int mergeCount = 1;
-
-                // Merge rows based on the current strategy
-                while (i < (mSections.size() - 1) &&
-                        mMergeAlgorithm.continueMerging(section, mSections.get(i + 1),
-                                sectionAppCount, mNumAppsPerRow, mergeCount)) {
-                    SectionInfo nextSection = mSections.remove(i + 1);
-
-                    // Remove the next section break
-                    mAdapterItems.remove(nextSection.sectionBreakItem);
-                    int pos = mAdapterItems.indexOf(section.firstAppItem);
-
-                    // Point the section for these new apps to the merged section
-                    int nextPos = pos + section.numApps;
-                    for (int j = nextPos; j < (nextPos + nextSection.numApps); j++) {
-                        AdapterItem item = mAdapterItems.get(j);
-                        item.sectionInfo = section;
-                        item.sectionAppIndex += section.numApps;
-                    }
+        int numSections = sections.size();
+        int numItems = adapterItems.size();
+        List<SectionInfo> mergedSections = new ArrayList<>(numSections);
+        List<AdapterItem> mergedItems = new ArrayList<>(numItems);
+        int itemIndex = 0;
 
-                    // Update the following adapter items of the removed section item
-                    pos = mAdapterItems.indexOf(nextSection.firstAppItem);
-                    for (int j = pos; j < mAdapterItems.size(); j++) {
-                        AdapterItem item = mAdapterItems.get(j);
-                        item.position--;
-                    }
-                    section.numApps += nextSection.numApps;
-                    sectionAppCount += nextSection.numApps;
+        // Go through each section and try and merge some of the following sections
+        for (int i = 0; i < numSections; i++) {
+            SectionInfo section = sections.get(i);
+            mergedSections.add(section);
+
+            // Copy the items up to the end of the section
+            while (itemIndex < numItems && adapterItems.get(itemIndex).sectionInfo != section) {
+                addMergedItem(mergedItems, adapterItems.get(itemIndex++));
+            }
+            while (itemIndex < numItems && adapterItems.get(itemIndex).sectionInfo == section) {
+                addMergedItem(mergedItems, adapterItems.get(itemIndex++));
+            }
+
+            int sectionAppCount = section.numApps;
+            int mergeCount = 1;
+
+            // Merge rows based on the current strategy
+            while (i < (numSections - 1) &&
+                    mergeAlgorithm.continueMerging(section, sections.get(i + 1),
+                            sectionAppCount, numAppsPerRow, mergeCount)) {
+                SectionInfo nextSection = sections.get(++i);
 
-                    if (DEBUG) {
-                        Log.d(TAG, "Merging: " + nextSection.firstAppItem.sectionName +
-                                " to " + section.firstAppItem.sectionName +
-                                " mergedNumRows: " + (sectionAppCount / mNumAppsPerRow));
+                // Point the section for these new apps to the merged section, and skip the next
+                // section break
+                while (itemIndex < numItems
+                        && adapterItems.get(itemIndex).sectionInfo != nextSection) {
+                    addMergedItem(mergedItems, adapterItems.get(itemIndex++));
+                }
+                while (itemIndex < numItems
+                        && adapterItems.get(itemIndex).sectionInfo == nextSection) {
+                    AdapterItem item = adapterItems.get(itemIndex++);
+                    if (item == nextSection.sectionBreakItem) {
+                        continue;
                     }
-                    mergeCount++;
+                    item.sectionInfo = section;
+                    item.sectionAppIndex += section.numApps;
+                    addMergedItem(mergedItems, item);
+                }
+                section.numApps += nextSection.numApps;
+                sectionAppCount += nextSection.numApps;
+
+                if (DEBUG) {
+                    Log.d(TAG, "Merging: " + nextSection.firstAppItem.sectionName +
+                            " to " + section.firstAppItem.sectionName +
+                            " mergedNumRows: " + (sectionAppCount / numAppsPerRow));
                 }
+                mergeCount++;
+            }
+        }
+
+        // Copy the items after the last section
+        while (itemIndex < numItems) {
+            addMergedItem(mergedItems, adapterItems.get(itemIndex++));
+        }
+
+        sections.clear();
+        sections.addAll(mergedSections);
+        return mergedItems;
+    }
+
+    private static void addMergedItem(List<AdapterItem> mergedItems, AdapterItem item) {
+        item.position = mergedItems.size();
+        mergedItems.add(item);
+    }
+
+    private static List<CharSequence> getTitles(List<AppInfo> apps) {
+        List<CharSequence> titles = new ArrayList<>(apps.size());
+        for (AppInfo info : apps) {
+            titles.add(info.title);
+        }
+        return titles;
+    }
+
+    /**
+     * Computes the section names of the titles which are not cached yet, in one batch.
+     */
+    private void updateCachedSectionNames(List<CharSequence> appTitles) {
+        synchronized (mIndexer) {
+            ArrayList<CharSequence> titles = new ArrayList<>();
+            for (CharSequence title : appTitles) {
+                if (!mCachedSectionNames.containsKey(title)) {
+                    titles.add(title);
+                }
+            }
+            if (titles.isEmpty()) {
+                return;
+            }
+            String[] sectionNames = mIndexer.computeSectionNames(titles);
+            for (int i = 0; i < sectionNames.length; i++) {
+                mCachedSectionNames.put(titles.get(i), sectionNames[i]);
             }
         }
     }
 
     /**
      * Returns the cached section name for the given title, recomputing and updating the cache if
-     * the title has no cached section name.
+     * the title has no cached section name. Called from both the main and the worker thread.
      */
     private String getAndUpdateCachedSectionName(CharSequence title) {
-        String sectionName = mCachedSectionNames.get(title);
-        if (sectionName == null) {
-            sectionName = mIndexer.computeSectionName(title);
-            mCachedSectionNames.put(title, sectionName);
+        synchronized (mIndexer) {
+            String sectionName = mCachedSectionNames.get(title);
+            if (sectionName == null) {
+                sectionName = mIndexer.computeSectionName(title);
+                mCachedSectionNames.put(title, sectionName);
+            }
+            return sectionName;
         }
-        return sectionName;
     }
 }
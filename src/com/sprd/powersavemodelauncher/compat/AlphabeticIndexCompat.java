@@ -1,12 +1,17 @@
 package com.sprd.powersavemodelauncher.compat;
 
+import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.res.Configuration;
+import android.icu.text.AlphabeticIndex;
+import android.os.Build;
+import android.os.LocaleList;
 import android.util.Log;
 
 import com.sprd.powersavemodelauncher.Utilities;
 
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 public class AlphabeticIndexCompat {
@@ -73,6 +78,27 @@ public class AlphabeticIndexCompat {
         return sectionName;
     }
 
+    /**
+     * Computes the section names of {@param titles} in one pass, titles which appear several
+     * times are only indexed once.
+     *
+     * @return the section names, in the order of {@param titles}.
+     */
+    public String[] computeSectionNames(List<? extends CharSequence> titles) {
+        String[] sectionNames = new String[titles.size()];
+        HashMap<String, String> namesByTitle = new HashMap<>();
+        for (int i = 0; i < sectionNames.length; i++) {
+            String title = titles.get(i).toString();
+            String sectionName = namesByTitle.get(title);
+            if (sectionName == null) {
+                sectionName = computeSectionName(title);
+                namesByTitle.put(title, sectionName);
+            }
+            sectionNames[i] = sectionName;
+        }
+        return sectionNames;
+    }
+
     /**
      * Base class to support Alphabetic indexing if not supported by the framework.
      * TODO(winsonc): disable for non-english locales
@@ -155,67 +181,39 @@ public class AlphabeticIndexCompat {
     }
 
     /**
-     * Reflected android.icu.text.AlphabeticIndex implementation, falls back to the base
-     * alphabetic index.
+     * android.icu.text.AlphabeticIndex implementation, with the bucket labels computed once.
      */
+    @TargetApi(Build.VERSION_CODES.N)
     private static class AlphabeticIndexVN extends BaseIndex {
 
-        private Object mAlphabeticIndex;
-        private Method mGetBucketIndexMethod;
-
-        private Method mGetBucketMethod;
-        private Method mGetLabelMethod;
-
-        public AlphabeticIndexVN(Context context) throws Exception {
-            // TODO: Replace this with locale list once available.
-            Object locales = Configuration.class.getDeclaredMethod("getLocales").invoke(
-                    context.getResources().getConfiguration());
-            int localeCount = (Integer) locales.getClass().getDeclaredMethod("size").invoke(locales);
-            Method localeGetter = locales.getClass().getDeclaredMethod("get", int.class);
-            Locale primaryLocale = localeCount == 0 ? Locale.ENGLISH :
-                    (Locale) localeGetter.invoke(locales, 0);
-
-            Class clazz = Class.forName("android.icu.text.AlphabeticIndex");
-            mAlphabeticIndex = clazz.getConstructor(Locale.class).newInstance(primaryLocale);
-
-            /*Method addLocales = clazz.getDeclaredMethod("addLabels", Locale[].class);
-            for (int i = 1; i < localeCount; i++) {
-                Locale l = (Locale) localeGetter.invoke(locales, i);
-                addLocales.invoke(mAlphabeticIndex, new Object[]{ new Locale[] {l}});
-            }
-            addLocales.invoke(mAlphabeticIndex, new Object[]{new Locale[]{ Locale.ENGLISH}});*/
+        private final AlphabeticIndex.ImmutableIndex mAlphabeticIndex;
+        private final String[] mBucketLabels;
 
-            mAlphabeticIndex = mAlphabeticIndex.getClass()
-                    .getDeclaredMethod("buildImmutableIndex")
-                    .invoke(mAlphabeticIndex);
+        public AlphabeticIndexVN(Context context) {
+            // Only the primary locale is indexed.
+            LocaleList locales = context.getResources().getConfiguration().getLocales();
+            Locale primaryLocale = locales.size() == 0 ? Locale.ENGLISH : locales.get(0);
 
-            mGetBucketIndexMethod = mAlphabeticIndex.getClass().getDeclaredMethod(
-                    "getBucketIndex", CharSequence.class);
-            mGetBucketMethod = mAlphabeticIndex.getClass().getDeclaredMethod("getBucket", int.class);
-            mGetLabelMethod = mGetBucketMethod.getReturnType().getDeclaredMethod("getLabel");
+            mAlphabeticIndex = new AlphabeticIndex<>(primaryLocale).buildImmutableIndex();
+            mBucketLabels = new String[mAlphabeticIndex.getBucketCount()];
+            for (int i = 0; i < mBucketLabels.length; i++) {
+                mBucketLabels[i] = mAlphabeticIndex.getBucket(i).getLabel();
+            }
         }
 
         /**
          * Returns the index of the bucket in which {@param s} should appear.
          */
         protected int getBucketIndex(String s) {
-            try {
-                return (Integer) mGetBucketIndexMethod.invoke(mAlphabeticIndex, s);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return super.getBucketIndex(s);
+            return mAlphabeticIndex.getBucketIndex(s);
         }
 
         /**
          * Returns the label for the bucket at the given index
          */
         protected String getBucketLabel(int index) {
-            try {
-                return (String) mGetLabelMethod.invoke(
-                        mGetBucketMethod.invoke(mAlphabeticIndex, index));
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (index >= 0 && index < mBucketLabels.length) {
+                return mBucketLabels[index];
             }
             return super.getBucketLabel(index);
         }
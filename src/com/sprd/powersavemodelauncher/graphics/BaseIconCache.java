@@ -0,0 +1,78 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.sprd.powersavemodelauncher.compat.LauncherActivityInfoCompat;
+import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
+
+/**
+ * Caches the unbadged icons of activities, so that an app installed for several users, in a work
+ * profile or as an app clone, is rendered and normalized once, and then only badged for each
+ * user.
+ *
+ * Nothing is cached when there is a single user, as the icons are never rendered twice then.
+ */
+public class BaseIconCache {
+
+    // The bitmaps are mostly shared with the icon cache entries of the main user.
+    private static final int MAX_ENTRIES = 128;
+
+    private final Context mContext;
+    private final LruCache<String, BaseIcon> mIcons = new LruCache<>(MAX_ENTRIES);
+
+    public BaseIconCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Same as {@link LauncherIcons#createBadgedIconBitmap}, reusing the unbadged icon if it was
+     * already rendered for another user.
+     */
+    public Bitmap createBadgedIconBitmap(LauncherActivityInfoCompat app, int iconDpi,
+            LauncherIcons.Normalization normalization) {
+        ApplicationInfo appInfo = app.getApplicationInfo();
+        // The apk path changes when the app is updated, which invalidates the icon.
+        String key = app.getComponentName().flattenToString() + "|" + appInfo.sourceDir;
+        BaseIcon base = mIcons.get(key);
+        if (base == null) {
+            LauncherIcons.Normalization computed = new LauncherIcons.Normalization();
+            if (normalization != null) {
+                computed.scale = normalization.scale;
+                computed.maskScale = normalization.maskScale;
+                computed.isShape = normalization.isShape;
+            }
+            Bitmap bitmap = LauncherIcons.createUnbadgedIconBitmap(app.getIcon(iconDpi),
+                    mContext, appInfo.targetSdkVersion, computed);
+            base = new BaseIcon(bitmap, computed);
+            if (UserManagerCompat.getInstance(mContext).getUserProfiles().size() > 1) {
+                mIcons.put(key, base);
+            }
+        }
+        if (normalization != null && !normalization.isValid()) {
+            normalization.scale = base.normalization.scale;
+            normalization.maskScale = base.normalization.maskScale;
+            normalization.isShape = base.normalization.isShape;
+        }
+        return LauncherIcons.badgeIconBitmap(base.bitmap, app.getUser(), mContext);
+    }
+
+    /**
+     * Drops the cached icons, to be called when they would render differently.
+     */
+    public void clear() {
+        mIcons.evictAll();
+    }
+
+    private static class BaseIcon {
+        final Bitmap bitmap;
+        final LauncherIcons.Normalization normalization;
+
+        BaseIcon(Bitmap bitmap, LauncherIcons.Normalization normalization) {
+            this.bitmap = bitmap;
+            this.normalization = normalization;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.sprd.powersavemodelauncher.Utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes icon bitmaps to the blobs stored in the icon DB, and decodes them back.
+ *
+ * The id of a codec is part of the icon DB version, so changing the codec resets the DB instead
+ * of leaving blobs which can no longer be decoded.
+ */
+public abstract class IconCodec {
+    private static final String TAG = "IconCodec";
+
+    public static final int ID_PNG = 0;
+    public static final int ID_WEBP = 1;
+    public static final int ID_RAW_RLE = 2;
+
+    public static final IconCodec PNG = new CompressCodec(ID_PNG, Bitmap.CompressFormat.PNG);
+    /**
+     * Lossless WEBP. A WEBP quality of 100 is only lossless from Q on, so this is the PNG codec
+     * on older releases.
+     */
+    public static final IconCodec WEBP = Utilities.ATLEAST_Q
+            ? new CompressCodec(ID_WEBP, Bitmap.CompressFormat.WEBP) : PNG;
+    public static final IconCodec RAW_RLE = new RawRleCodec();
+
+    /**
+     * The codec used for the icon DB. The other codecs trade larger blobs for faster decoding,
+     * compare them with IconCodecBenchmark on the target device before switching.
+     */
+    public static final IconCodec DEFAULT = PNG;
+
+    private final int mId;
+
+    IconCodec(int id) {
+        mId = id;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return the encoded bitmap, or null if it could not be encoded.
+     */
+    public abstract byte[] encode(Bitmap bitmap);
+
+    /**
+     * @param options decoding options, which the codec may ignore.
+     * @return the decoded bitmap, or null if the data is invalid.
+     */
+    public abstract Bitmap decode(byte[] data, BitmapFactory.Options options);
+
+    /**
+     * Codec relying on {@link Bitmap#compress}.
+     */
+    private static class CompressCodec extends IconCodec {
+        private final Bitmap.CompressFormat mFormat;
+
+        CompressCodec(int id, Bitmap.CompressFormat format) {
+            super(id);
+            mFormat = format;
+        }
+
+        @Override
+        public byte[] encode(Bitmap bitmap) {
+            // Try go guesstimate how much space the icon will take when serialized
+            // to avoid unnecessary allocations/copies during the write.
+            int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            try {
+                bitmap.compress(mFormat, 100, out);
+                out.flush();
+                out.close();
+                return out.toByteArray();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write bitmap");
+                return null;
+            }
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, BitmapFactory.Options options) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Stores the premultiplied pixels as they are in memory, ARGB_8888 or RGB_565, compressed
+     * with a PackBits style run-length encoding. Each packet starts with a header byte n: if
+     * n >= 0, n + 1 literal pixels follow, otherwise the single following pixel is repeated
+     * 1 - n times.
+     *
+     * Layout: width (int), height (int), config (byte), packets.
+     */
+    private static class RawRleCodec extends IconCodec {
+        private static final int HEADER_SIZE = 9;
+        private static final byte CONFIG_ARGB_8888 = 0;
+        private static final byte CONFIG_RGB_565 = 1;
+        private static final int MAX_RUN = 128;
+
+        RawRleCodec() {
+            super(ID_RAW_RLE);
+        }
+
+        @Override
+        public byte[] encode(Bitmap bitmap) {
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                    && bitmap.getConfig() != Bitmap.Config.RGB_565) {
+                bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+                if (bitmap == null) {
+                    return null;
+                }
+            }
+            boolean is565 = bitmap.getConfig() == Bitmap.Config.RGB_565;
+            int bytesPerPixel = is565 ? 2 : 4;
+            int count = bitmap.getWidth() * bitmap.getHeight();
+
+            ByteBuffer pixels = ByteBuffer.allocate(count * bytesPerPixel)
+                    .order(ByteOrder.nativeOrder());
+            bitmap.copyPixelsToBuffer(pixels);
+            pixels.rewind();
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = is565 ? pixels.getShort() : pixels.getInt();
+            }
+
+            // Worst case: one header byte for every MAX_RUN literal pixels.
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + count * bytesPerPixel
+                    + (count + MAX_RUN - 1) / MAX_RUN).order(ByteOrder.nativeOrder());
+            out.putInt(bitmap.getWidth());
+            out.putInt(bitmap.getHeight());
+            out.put(is565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888);
+
+            int i = 0;
+            while (i < count) {
+                int run = 1;
+                while (i + run < count && run < MAX_RUN && values[i + run] == values[i]) {
+                    run++;
+                }
+                if (run > 1) {
+                    out.put((byte) (1 - run));
+                    putPixel(out, values[i], is565);
+                    i += run;
+                    continue;
+                }
+
+                // Collect literals until the next run of at least two equal pixels.
+                int literals = 1;
+                while (i + literals < count && literals < MAX_RUN
+                        && (i + literals + 1 >= count
+                                || values[i + literals] != values[i + literals + 1])) {
+                    literals++;
+                }
+                out.put((byte) (literals - 1));
+                for (int j = 0; j < literals; j++) {
+                    putPixel(out, values[i + j], is565);
+                }
+                i += literals;
+            }
+
+            byte[] result = new byte[out.position()];
+            out.rewind();
+            out.get(result);
+            return result;
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, BitmapFactory.Options options) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+                int width = in.getInt();
+                int height = in.getInt();
+                boolean is565 = in.get() == CONFIG_RGB_565;
+                int count = width * height;
+
+                ByteBuffer pixels = ByteBuffer.allocate(count * (is565 ? 2 : 4))
+                        .order(ByteOrder.nativeOrder());
+                while (pixels.hasRemaining()) {
+                    int header = in.get();
+                    if (header >= 0) {
+                        for (int j = 0; j <= header; j++) {
+                            copyPixel(in, pixels, is565);
+                        }
+                    } else {
+                        int value = is565 ? in.getShort() : in.getInt();
+                        for (int j = 0; j < 1 - header; j++) {
+                            putPixel(pixels, value, is565);
+                        }
+                    }
+                }
+                pixels.rewind();
+
+                Bitmap bitmap = Bitmap.createBitmap(width, height,
+                        is565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+                bitmap.copyPixelsFromBuffer(pixels);
+                return bitmap;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Invalid icon data", e);
+                return null;
+            }
+        }
+
+        private static void putPixel(ByteBuffer out, int value, boolean is565) {
+            if (is565) {
+                out.putShort((short) value);
+            } else {
+                out.putInt(value);
+            }
+        }
+
+        private static void copyPixel(ByteBuffer in, ByteBuffer out, boolean is565) {
+            if (is565) {
+                out.putShort(in.getShort());
+            } else {
+                out.putInt(in.getInt());
+            }
+        }
+    }
+}
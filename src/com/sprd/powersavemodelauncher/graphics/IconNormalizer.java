@@ -38,6 +38,7 @@ import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Random;
 
 public class IconNormalizer {
@@ -57,6 +58,11 @@ public class IconNormalizer {
 
     private static final int MIN_VISIBLE_ALPHA = 40;
 
+    // Constants to test the 8 alpha values packed in a long at once, see visibleMask().
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long VISIBLE_CARRY = (0x7F - MIN_VISIBLE_ALPHA) * 0x0101010101010101L;
+
     // Shape detection related constants
     private static final float BOUND_RATIO_MARGIN = .05f;
     private static final float PIXEL_DIFF_PERCENTAGE_THRESHOLD = 0.005f;
@@ -67,12 +73,13 @@ public class IconNormalizer {
 
     private final int mMaxSize;
     private final Bitmap mBitmap;
-    private final Bitmap mBitmapARGB;
+    private final Bitmap mBitmapMask;
     private final Canvas mCanvas;
     private final Paint mPaintMaskShape;
     private final Paint mPaintMaskShapeOutline;
-    private final byte[] mPixels;
-    private final int[] mPixelsARGB;
+    // The alpha bitmaps are copied to mPixelBuffer, then read as packed longs from mPixels.
+    private final ByteBuffer mPixelBuffer;
+    private final long[] mPixels;
 
     private final Rect mAdaptiveIconBounds;
     private float mAdaptiveIconScale;
@@ -82,29 +89,31 @@ public class IconNormalizer {
     private final float[] mRightBorder;
     private final Rect mBounds;
     private final Matrix mMatrix;
+    private final Path mShapePath;
 
     private final Paint mPaintIcon;
-    private final Canvas mCanvasARGB;
+    private final Canvas mCanvasMask;
 
     private File mDir;
     private int mFileId;
     private final Random mRandom;
 
-    private IconNormalizer(Context context) {
+    IconNormalizer(Context context) {
         // Use twice the icon size as maximum size to avoid scaling down twice.
         mMaxSize = LauncherAppState.getInstance(context).getInvariantDeviceProfile().iconBitmapSize * 2;
         mBitmap = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ALPHA_8);
         mCanvas = new Canvas(mBitmap);
-        mPixels = new byte[mMaxSize * mMaxSize];
-        mPixelsARGB = new int[mMaxSize * mMaxSize];
+        mPixels = new long[(mBitmap.getByteCount() + 7) / 8];
+        mPixelBuffer = ByteBuffer.allocateDirect(mPixels.length * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
         mLeftBorder = new float[mMaxSize];
         mRightBorder = new float[mMaxSize];
         mBounds = new Rect();
         mAdaptiveIconBounds = new Rect();
 
-        // Needed for isShape() method
-        mBitmapARGB = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ARGB_8888);
-        mCanvasARGB = new Canvas(mBitmapARGB);
+        // Needed for isShape() method, which only looks at the alpha.
+        mBitmapMask = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ALPHA_8);
+        mCanvasMask = new Canvas(mBitmapMask);
 
         mPaintIcon = new Paint();
         mPaintIcon.setColor(Color.WHITE);
@@ -121,6 +130,7 @@ public class IconNormalizer {
         mPaintMaskShapeOutline.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
 
         mMatrix = new Matrix();
+        mShapePath = new Path();
         mAdaptiveIconScale = SCALE_NOT_INITIALIZED;
 
         if (isDebugBitmapARGB()) {
@@ -132,6 +142,7 @@ public class IconNormalizer {
     /**
      * Returns if the shape of the icon is same as the path.
      * For this method to work, the shape path bounds should be in [0,1]x[0,1] bounds.
+     * {@param maskPath} is not modified, so that it can be shared.
      */
     private boolean isShape(Path maskPath) {
         // Condition1:
@@ -149,13 +160,13 @@ public class IconNormalizer {
         // Actual icon (white) and the fitted shape (e.g., circle)(red) XOR operation
         // should generate transparent image, if the actual icon is equivalent to the shape.
         mFileId = mRandom.nextInt();
-        mBitmapARGB.eraseColor(Color.TRANSPARENT);
-        mCanvasARGB.drawBitmap(mBitmap, 0, 0, mPaintIcon);
+        mBitmapMask.eraseColor(Color.TRANSPARENT);
+        mCanvasMask.drawBitmap(mBitmap, 0, 0, mPaintIcon);
 
         if (isDebugBitmapARGB()) {
             final File beforeFile = new File(mDir, "isShape" + mFileId + "_before.png");
             try {
-                mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
+                mBitmapMask.compress(Bitmap.CompressFormat.PNG, 100,
                         new FileOutputStream(beforeFile));
             } catch (Exception e) {}
         }
@@ -164,20 +175,20 @@ public class IconNormalizer {
         mMatrix.reset();
         mMatrix.setScale(mBounds.width(), mBounds.height());
         mMatrix.postTranslate(mBounds.left, mBounds.top);
-        maskPath.transform(mMatrix);
+        maskPath.transform(mMatrix, mShapePath);
 
         // XOR operation
-        mCanvasARGB.drawPath(maskPath, mPaintMaskShape);
+        mCanvasMask.drawPath(mShapePath, mPaintMaskShape);
 
         // DST_OUT operation around the mask path outline
-        mCanvasARGB.drawPath(maskPath, mPaintMaskShapeOutline);
+        mCanvasMask.drawPath(mShapePath, mPaintMaskShapeOutline);
 
-        boolean isTrans = isTransparentBitmap(mBitmapARGB);
+        boolean isTrans = isTransparentBitmap(mBitmapMask);
         if (isDebugBitmapARGB()) {
             final File afterFile = new File(mDir,
                     "isShape" + mFileId + "_after_" + isTrans + ".png");
             try {
-                mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
+                mBitmapMask.compress(Bitmap.CompressFormat.PNG, 100,
                         new FileOutputStream(afterFile));
             } catch (Exception e) {}
         }
@@ -198,15 +209,12 @@ public class IconNormalizer {
     private boolean isTransparentBitmap(Bitmap bitmap) {
         int w = mBounds.width();
         int h = mBounds.height();
-        bitmap.getPixels(mPixelsARGB, 0 /* the first index to write into the array */,
-                w /* stride */,
-                mBounds.left, mBounds.top,
-                w, h);
+        loadPixels(bitmap);
+        int stride = bitmap.getRowBytes();
         int sum = 0;
-        for (int i = 0; i < w * h; i++) {
-            if(Color.alpha(mPixelsARGB[i]) > MIN_VISIBLE_ALPHA) {
-                    sum++;
-            }
+        for (int y = mBounds.top; y < mBounds.top + h; y++) {
+            int rowStart = y * stride;
+            sum += countVisible(mPixels, rowStart + mBounds.left, rowStart + mBounds.left + w);
         }
         float percentageDiffPixels = ((float) sum) / (mBounds.width() * mBounds.height());
         boolean transparentImage = percentageDiffPixels < PIXEL_DIFF_PERCENTAGE_THRESHOLD;
@@ -255,54 +263,19 @@ public class IconNormalizer {
         mBitmap.eraseColor(Color.TRANSPARENT);
         d.setBounds(0, 0, width, height);
         d.draw(mCanvas);
-
-        ByteBuffer buffer = ByteBuffer.wrap(mPixels);
-        buffer.rewind();
-        mBitmap.copyPixelsToBuffer(buffer);
+        loadPixels(mBitmap);
 
         // Overall bounds of the visible icon.
         int topY = -1;
         int bottomY = -1;
         int leftX = mMaxSize + 1;
         int rightX = -1;
-
-        // Create border by going through all pixels one row at a time and for each row find
-        // the first and the last non-transparent pixel. Set those values to mLeftBorder and
-        // mRightBorder and use -1 if there are no visible pixel in the row.
-
-        // buffer position
-        int index = 0;
-        // buffer shift after every row, width of buffer = mMaxSize
-        int rowSizeDiff = mMaxSize - width;
-        // first and last position for any row.
-        int firstX, lastX;
-
-        for (int y = 0; y < height; y++) {
-            firstX = lastX = -1;
-            for (int x = 0; x < width; x++) {
-                if ((mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
-                    if (firstX == -1) {
-                        firstX = x;
-                    }
-                    lastX = x;
-                }
-                index++;
-            }
-            index += rowSizeDiff;
-
-            mLeftBorder[y] = firstX;
-            mRightBorder[y] = lastX;
-
-            // If there is at least one visible pixel, update the overall bounds.
-            if (firstX != -1) {
-                bottomY = y;
-                if (topY == -1) {
-                    topY = y;
-                }
-
-                leftX = Math.min(leftX, firstX);
-                rightX = Math.max(rightX, lastX);
-            }
+        if (findBorders(mPixels, mBitmap.getRowBytes(), width, height,
+                mLeftBorder, mRightBorder, mBounds)) {
+            leftX = mBounds.left;
+            topY = mBounds.top;
+            rightX = mBounds.right;
+            bottomY = mBounds.bottom;
         }
 
         if (topY == -1 || rightX == -1) {
@@ -373,61 +346,161 @@ public class IconNormalizer {
         mBitmap.eraseColor(Color.TRANSPARENT);
         d.setBounds(0, 0, width, height);
         d.draw(mCanvas);
+        loadPixels(mBitmap);
+
+        if (findBorders(mPixels, mBitmap.getRowBytes(), width, height,
+                mLeftBorder, mRightBorder, mBounds)) {
+            if (outBounds != null) {
+                outBounds.set(mBounds);
+            }
+        }
+    }
 
-        ByteBuffer buffer = ByteBuffer.wrap(mPixels);
-        buffer.rewind();
-        mBitmap.copyPixelsToBuffer(buffer);
+    private void loadPixels(Bitmap bitmap) {
+        mPixelBuffer.rewind();
+        bitmap.copyPixelsToBuffer(mPixelBuffer);
+        mPixelBuffer.rewind();
+        mPixelBuffer.asLongBuffer().get(mPixels);
+    }
 
-        // Overall bounds of the visible icon.
+    /**
+     * Finds the first and the last visible pixel of each row of an alpha buffer. Rows are scanned
+     * 8 pixels at a time, from the left until the first visible pixel, then from the right until
+     * the last one, so that transparent rows and spans are skipped quickly.
+     *
+     * @param pixels the alpha values, packed 8 per long in little endian order.
+     * @param stride the number of alpha values per row in {@param pixels}.
+     * @param outLeft receives the leftmost visible x of each row, or -1.
+     * @param outRight receives the rightmost visible x of each row, or -1.
+     * @param outBounds receives the bounds of the visible pixels, inclusive.
+     * @return false if no pixel is visible, in which case outBounds is not set.
+     */
+    static boolean findBorders(long[] pixels, int stride, int width, int height,
+            float[] outLeft, float[] outRight, Rect outBounds) {
         int topY = -1;
         int bottomY = -1;
-        int leftX = mMaxSize + 1;
+        int leftX = Integer.MAX_VALUE;
         int rightX = -1;
 
-        // Create border by going through all pixels one row at a time and for each row find
-        // the first and the last non-transparent pixel. Set those values to mLeftBorder and
-        // mRightBorder and use -1 if there are no visible pixel in the row.
-
-        // buffer position
-        int index = 0;
-        // buffer shift after every row, width of buffer = mMaxSize
-        int rowSizeDiff = mMaxSize - width;
-        // first and last position for any row.
-        int firstX, lastX;
-
         for (int y = 0; y < height; y++) {
-            firstX = lastX = -1;
-            for (int x = 0; x < width; x++) {
-                if ((mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
-                    if (firstX == -1) {
-                        firstX = x;
-                    }
-                    lastX = x;
-                }
-                index++;
+            int rowStart = y * stride;
+            int rowEnd = rowStart + width;
+            int first = firstVisible(pixels, rowStart, rowEnd);
+            if (first == -1) {
+                outLeft[y] = outRight[y] = -1;
+                continue;
+            }
+            int firstX = first - rowStart;
+            int lastX = lastVisible(pixels, first, rowEnd) - rowStart;
+            outLeft[y] = firstX;
+            outRight[y] = lastX;
+
+            bottomY = y;
+            if (topY == -1) {
+                topY = y;
             }
-            index += rowSizeDiff;
+            leftX = Math.min(leftX, firstX);
+            rightX = Math.max(rightX, lastX);
+        }
 
-            // If there is at least one visible pixel, update the overall bounds.
-            if (firstX != -1) {
-                bottomY = y;
-                if (topY == -1) {
-                    topY = y;
-                }
+        if (topY == -1) {
+            return false;
+        }
+        outBounds.set(leftX, topY, rightX, bottomY);
+        return true;
+    }
 
-                leftX = Math.min(leftX, firstX);
-                rightX = Math.max(rightX, lastX);
+    /**
+     * @return a mask with the high bit of every visible alpha value in {@param word} set.
+     */
+    private static long visibleMask(long word) {
+        // Alpha values with the high bit set are visible. For the others, adding VISIBLE_CARRY
+        // sets the high bit if and only if they are above MIN_VISIBLE_ALPHA, without carrying
+        // into the next value.
+        return (((word & LOW_7_BITS) + VISIBLE_CARRY) | word) & HIGH_BITS;
+    }
+
+    private static boolean isVisible(long[] pixels, int index) {
+        return ((pixels[index >>> 3] >>> ((index & 7) << 3)) & 0xFF) > MIN_VISIBLE_ALPHA;
+    }
+
+    /**
+     * @return the index of the first visible alpha value in [{@param from}, {@param to}), or -1.
+     */
+    private static int firstVisible(long[] pixels, int from, int to) {
+        int i = from;
+        while (i < to && (i & 7) != 0) {
+            if (isVisible(pixels, i)) {
+                return i;
+            }
+            i++;
+        }
+        while (i + 8 <= to) {
+            long mask = visibleMask(pixels[i >>> 3]);
+            if (mask != 0) {
+                return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+            }
+            i += 8;
+        }
+        while (i < to) {
+            if (isVisible(pixels, i)) {
+                return i;
             }
+            i++;
         }
+        return -1;
+    }
 
-        if (topY == -1 || rightX == -1) {
-            // No valid pixels found. Do not scale.
-            return;
+    /**
+     * @return the index of the last visible alpha value in [{@param from}, {@param to}), or -1.
+     */
+    private static int lastVisible(long[] pixels, int from, int to) {
+        int i = to;
+        while (i > from && (i & 7) != 0) {
+            i--;
+            if (isVisible(pixels, i)) {
+                return i;
+            }
         }
+        while (i - 8 >= from) {
+            long mask = visibleMask(pixels[(i - 8) >>> 3]);
+            if (mask != 0) {
+                return i - 1 - (Long.numberOfLeadingZeros(mask) >>> 3);
+            }
+            i -= 8;
+        }
+        while (i > from) {
+            i--;
+            if (isVisible(pixels, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        if (outBounds != null) {
-            outBounds.set(leftX, topY, rightX, bottomY);
+    /**
+     * @return the number of visible alpha values in [{@param from}, {@param to}).
+     */
+    static int countVisible(long[] pixels, int from, int to) {
+        int count = 0;
+        int i = from;
+        while (i < to && (i & 7) != 0) {
+            if (isVisible(pixels, i)) {
+                count++;
+            }
+            i++;
+        }
+        while (i + 8 <= to) {
+            count += Long.bitCount(visibleMask(pixels[i >>> 3]));
+            i += 8;
+        }
+        while (i < to) {
+            if (isVisible(pixels, i)) {
+                count++;
+            }
+            i++;
         }
+        return count;
     }
 
 
@@ -485,7 +558,15 @@ public class IconNormalizer {
         }
     }
 
+    /**
+     * Returns the normalizer owned by the calling {@link IconRenderPool} thread, or the shared
+     * one on any other thread.
+     */
     public static IconNormalizer getInstance(Context context) {
+        IconRenderPool.RenderThread renderThread = IconRenderPool.currentRenderThread();
+        if (renderThread != null) {
+            return renderThread.getNormalizer();
+        }
         synchronized (LOCK) {
             if (sIconNormalizer == null) {
                 sIconNormalizer = new IconNormalizer(context);
@@ -0,0 +1,102 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders icons on a few background threads. Each thread owns its own {@link IconNormalizer}
+ * and {@link Canvas}, so that icons are rendered in parallel instead of contending on the
+ * shared instances used by other threads.
+ *
+ * Idle threads are stopped after a while, which also frees their normalizer buffers.
+ */
+public class IconRenderPool {
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final Context mContext;
+    private final int mParallelism;
+    private final ThreadPoolExecutor mExecutor;
+
+    public IconRenderPool(Context context) {
+        this(context, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public IconRenderPool(Context context, int parallelism) {
+        mContext = context.getApplicationContext();
+        mParallelism = Math.max(1, parallelism);
+        mExecutor = new ThreadPoolExecutor(mParallelism, mParallelism,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new RenderThread(r, "icon-render-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the number of icons which can be rendered at the same time.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return mExecutor.submit(task);
+    }
+
+    /**
+     * @return the render thread the caller runs on, or null if it is not a render thread.
+     */
+    static RenderThread currentRenderThread() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof RenderThread ? (RenderThread) thread : null;
+    }
+
+    class RenderThread extends Thread {
+        private IconNormalizer mNormalizer;
+        private Canvas mCanvas;
+
+        RenderThread(Runnable target, String name) {
+            super(target, name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            super.run();
+        }
+
+        IconNormalizer getNormalizer() {
+            if (mNormalizer == null) {
+                mNormalizer = new IconNormalizer(mContext);
+            }
+            return mNormalizer;
+        }
+
+        Canvas getCanvas() {
+            if (mCanvas == null) {
+                mCanvas = new Canvas();
+                mCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                        Paint.FILTER_BITMAP_FLAG));
+            }
+            return mCanvas;
+        }
+    }
+}
@@ -26,9 +26,11 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.PaintDrawable;
 import android.os.Build;
@@ -39,16 +41,25 @@ import com.sprd.powersavemodelauncher.R;
 import com.sprd.powersavemodelauncher.Utilities;
 import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Helper methods for generating various launcher icons
  */
 public class LauncherIcons {
 
 
-    private static final Rect sOldBounds = new Rect();
+    // Shared by the threads which are not IconRenderPool threads.
     private static final Canvas sCanvas = new Canvas();
 
 
+    // Cached until the icon shape changes, see onIconShapeChanged().
+    private static volatile IconShape sIconShape;
+
+    // The badges of the managed profiles, cached until the users change, see onUsersChanged().
+    private static final ConcurrentHashMap<UserHandleCompat, UserBadge> sUserBadges =
+            new ConcurrentHashMap<>();
+
     static int sColors[] = { 0xffff0000, 0xff00ff00, 0xff0000ff };
     static int sColorIndex = 0;
 
@@ -92,6 +103,61 @@ public class LauncherIcons {
         return LauncherAppState.getIDP(context).iconBitmapSize;
     }
 
+    /**
+     * What is needed from {@link R.drawable#adaptive_icon_drawable_wrapper} to normalize and wrap
+     * icons, so that it is inflated once per icon shape instead of once per icon.
+     */
+    private static class IconShape {
+        // In [0,1]x[0,1] bounds, must not be modified.
+        final Path mask;
+        final int legacyBackgroundColor;
+
+        IconShape(Path mask, int legacyBackgroundColor) {
+            this.mask = mask;
+            this.legacyBackgroundColor = legacyBackgroundColor;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static IconShape getIconShape(Context context) {
+        IconShape shape = sIconShape;
+        if (shape == null) {
+            AdaptiveIconDrawable dr = (AdaptiveIconDrawable)
+                    context.getDrawable(R.drawable.adaptive_icon_drawable_wrapper).mutate();
+            dr.setBounds(0, 0, 1, 1);
+            shape = new IconShape(new Path(dr.getIconMask()),
+                    context.getColor(R.color.legacy_icon_background));
+            sIconShape = shape;
+        }
+        return shape;
+    }
+
+    /**
+     * Drops the cached icon mask, to be called when the system icon shape changes.
+     */
+    public static void onIconShapeChanged() {
+        sIconShape = null;
+    }
+
+    /**
+     * The badge drawn by the platform over the icons of a user, on a transparent icon.
+     */
+    private static class UserBadge {
+        // Null if the icons of the user are not badged.
+        final Bitmap bitmap;
+
+        UserBadge(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Drops the cached user badges, to be called when a profile is added or removed.
+     */
+    public static void onUsersChanged() {
+        sUserBadges.clear();
+    }
+
     /**
      * If the platform is running O but the app is not providing AdaptiveIconDrawable, then
      * shrink the legacy icon and set it as foreground. Use color drawable as background to
@@ -104,12 +170,12 @@ public class LauncherIcons {
 
         try {
             if (!(drawable instanceof AdaptiveIconDrawable)) {
-                AdaptiveIconDrawable iconWrapper = (AdaptiveIconDrawable)
-                        context.getDrawable(R.drawable.adaptive_icon_drawable_wrapper).mutate();
-                FixedScaleDrawable fsd = ((FixedScaleDrawable) iconWrapper.getForeground());
+                // Same as R.drawable.adaptive_icon_drawable_wrapper, without inflating it.
+                FixedScaleDrawable fsd = new FixedScaleDrawable();
                 fsd.setDrawable(drawable);
                 fsd.setScale(scale);
-                return (Drawable) iconWrapper;
+                return new AdaptiveIconDrawable(
+                        new ColorDrawable(getIconShape(context).legacyBackgroundColor), fsd);
             }
         } catch (Exception e) {
             return drawable;
@@ -127,63 +193,148 @@ public class LauncherIcons {
         return createIconBitmap(new BitmapDrawable(context.getResources(), icon), context);
     }
 
+    /**
+     * Result of the normalization of an icon. It only depends on the drawable and the icon mask,
+     * so it can be persisted and reused to render the same drawable again.
+     */
+    public static class Normalization {
+        /** The scale applied when drawing the icon, NaN if unknown. */
+        public float scale = Float.NaN;
+        /** The scale of the icon within the icon mask, used when wrapping legacy icons. */
+        public float maskScale = Float.NaN;
+        /** Whether the icon already has the shape of the icon mask. */
+        public boolean isShape;
+
+        public boolean isValid() {
+            return !Float.isNaN(scale) && !Float.isNaN(maskScale);
+        }
+    }
+
     /**
      * Returns a bitmap suitable for the all apps view. The icon is badged for {@param user}.
      * The bitmap is also visually normalized with other icons.
      */
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     public static Bitmap createBadgedIconBitmap(
             Drawable icon, UserHandleCompat user, Context context,int iconAppTargetSdk) {
+        return createBadgedIconBitmap(icon, user, context, iconAppTargetSdk, null);
+    }
+
+    /**
+     * @param normalization if valid, the normalization to apply instead of computing it.
+     *                      Otherwise it is set to the computed normalization.
+     */
+    public static Bitmap createBadgedIconBitmap(Drawable icon, UserHandleCompat user,
+            Context context, int iconAppTargetSdk, Normalization normalization) {
+        return badgeIconBitmap(createUnbadgedIconBitmap(icon, context, iconAppTargetSdk,
+                normalization), user, context);
+    }
 
+    /**
+     * Returns a bitmap suitable for the all apps view, visually normalized with other icons but
+     * not badged, see {@link #badgeIconBitmap}.
+     *
+     * @param normalization if valid, the normalization to apply instead of computing it.
+     *                      Otherwise it is set to the computed normalization.
+     */
+    public static Bitmap createUnbadgedIconBitmap(Drawable icon, Context context,
+            int iconAppTargetSdk, Normalization normalization) {
         IconNormalizer normalizer;
 
         float scale = 1;
 
         if (!Utilities.LAUNCHER3_DISABLE_ICON_NORMALIZATION) {
-            normalizer = IconNormalizer.getInstance(context);
-            if (Utilities.ATLEAST_OREO && iconAppTargetSdk >= Build.VERSION_CODES.O) {
+            boolean useMask = Utilities.ATLEAST_OREO && iconAppTargetSdk >= Build.VERSION_CODES.O;
+            boolean normalized = false;
+            if (normalization != null && normalization.isValid()) {
+                boolean wrap = useMask && Utilities.LEGACY_ICON_TREATMENT
+                        && !normalization.isShape;
+                Drawable wrappedIcon = wrap
+                        ? wrapToAdaptiveIconDrawable(context, icon, normalization.maskScale)
+                        : icon;
+                // The saved scale is the one of the wrapped icon, it is computed again below if
+                // the icon isn't wrapped this time.
+                if (!wrap || wrappedIcon != icon) {
+                    icon = wrappedIcon;
+                    scale = normalization.scale;
+                    normalized = true;
+                }
+            }
+            if (!normalized) {
+                normalizer = IconNormalizer.getInstance(context);
                 boolean[] outShape = new boolean[1];
-                AdaptiveIconDrawable dr = (AdaptiveIconDrawable)
-                        context.getDrawable(R.drawable.adaptive_icon_drawable_wrapper).mutate();
-                dr.setBounds(0, 0, 1, 1);
-                scale = normalizer.getScale(icon, null, dr.getIconMask(), outShape);
-                if (Utilities.LEGACY_ICON_TREATMENT &&
-                        !outShape[0]){
-                    Drawable wrappedIcon = wrapToAdaptiveIconDrawable(context, icon, scale);
-                    if (wrappedIcon != icon) {
-                        icon = wrappedIcon;
-                        scale = normalizer.getScale(icon, null, null, null);
+                float maskScale;
+                if (useMask) {
+                    scale = normalizer.getScale(icon, null, getIconShape(context).mask, outShape);
+                    maskScale = scale;
+                    if (Utilities.LEGACY_ICON_TREATMENT &&
+                            !outShape[0]){
+                        Drawable wrappedIcon = wrapToAdaptiveIconDrawable(context, icon, scale);
+                        if (wrappedIcon != icon) {
+                            icon = wrappedIcon;
+                            scale = normalizer.getScale(icon, null, null, null);
+                        }
                     }
+                } else {
+                    scale = normalizer.getScale(icon, null, null, null);
+                    maskScale = scale;
+                }
+                if (normalization != null) {
+                    normalization.scale = scale;
+                    normalization.maskScale = maskScale;
+                    normalization.isShape = outShape[0];
                 }
-            } else {
-                scale = normalizer.getScale(icon, null, null, null);
             }
         }
 
-        Bitmap bitmap = createIconBitmap(icon, context, scale);
-        if (Utilities.ATLEAST_LOLLIPOP && user != null
-                && !UserHandleCompat.myUserHandle().equals(user)) {
-            BitmapDrawable drawable = new FixedSizeBitmapDrawable(bitmap);
-            Bitmap cloneAppBitmap = null;
-            boolean isAppClone = AppCloneUtils.isAppCloneUser(user.getUser());
-            if (isAppClone) {
-                cloneAppBitmap = getVisibleAreaOfIcon(bitmap, context);
-            }
-            Drawable badged = context.getPackageManager().getUserBadgedIcon(
-                    cloneAppBitmap == null ? drawable : new FixedSizeBitmapDrawable(cloneAppBitmap), user.getUser());
-            if (isAppClone && cloneAppBitmap != null) {
-                normalizer = IconNormalizer.getInstance(context);
-                scale = normalizer.getScale(badged, null, null, null);
-                return createIconBitmap(badged, context, scale);
-            } else {
-                if (badged instanceof BitmapDrawable) {
-                    return ((BitmapDrawable) badged).getBitmap();
-                } else {
-                    return createIconBitmap(badged, context);
-                }
+        return createIconBitmap(icon, context, scale);
+    }
+
+    /**
+     * Badges an icon created by {@link #createUnbadgedIconBitmap} for {@param user}. Returns
+     * {@param bitmap} itself for the main user.
+     */
+    public static Bitmap badgeIconBitmap(Bitmap bitmap, UserHandleCompat user, Context context) {
+        if (!Utilities.ATLEAST_LOLLIPOP || user == null
+                || UserHandleCompat.myUserHandle().equals(user)) {
+            return bitmap;
+        }
+        if (AppCloneUtils.isAppCloneUser(user.getUser())) {
+            return badgeAppCloneIcon(bitmap, user, context);
+        }
+        Bitmap badge = getUserBadge(user, context).bitmap;
+        if (badge == null) {
+            return bitmap;
+        }
+        Bitmap badged = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        IconRenderPool.RenderThread renderThread = IconRenderPool.currentRenderThread();
+        if (renderThread != null) {
+            drawBadge(badged, badge, renderThread.getCanvas());
+        } else {
+            synchronized (sCanvas) {
+                drawBadge(badged, badge, sCanvas);
             }
+        }
+        return badged;
+    }
+
+    /**
+     * App clone icons are cropped to their visible area before being badged, and normalized
+     * again, so the badge depends on each icon and can't be cached.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Bitmap badgeAppCloneIcon(Bitmap bitmap, UserHandleCompat user,
+            Context context) {
+        Bitmap cloneAppBitmap = getVisibleAreaOfIcon(bitmap, context);
+        Drawable badged = context.getPackageManager().getUserBadgedIcon(
+                new FixedSizeBitmapDrawable(cloneAppBitmap == null ? bitmap : cloneAppBitmap),
+                user.getUser());
+        if (cloneAppBitmap != null) {
+            float scale = IconNormalizer.getInstance(context).getScale(badged, null, null, null);
+            return createIconBitmap(badged, context, scale);
+        } else if (badged instanceof BitmapDrawable) {
+            return ((BitmapDrawable) badged).getBitmap();
         } else {
-            return bitmap;
+            return createIconBitmap(badged, context);
         }
     }
 
@@ -198,21 +349,63 @@ public class LauncherIcons {
         if (width > 0 && height > 0) {
             int textureWidth = Math.max(width, height);
             int textureHeight = textureWidth;
+            IconRenderPool.RenderThread renderThread = IconRenderPool.currentRenderThread();
+            if (renderThread != null) {
+                return drawVisibleArea(icon, outBounds, textureWidth, textureHeight,
+                        renderThread.getCanvas());
+            }
             synchronized (sCanvas) {
-                Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureWidth,
-                        Bitmap.Config.ARGB_8888);
-                final Canvas canvas = sCanvas;
-                canvas.setBitmap(bitmap);
-                int offsetX = (textureWidth - width) / 2;
-                int offsetY = (textureHeight - height) / 2;
-                canvas.drawBitmap(icon, outBounds, new Rect(offsetX, offsetY, offsetX + width, offsetY + height), null);
-                canvas.setBitmap(null);
-                return bitmap;
+                return drawVisibleArea(icon, outBounds, textureWidth, textureHeight, sCanvas);
             }
         }
         return null;
     }
 
+    private static Bitmap drawVisibleArea(Bitmap icon, Rect bounds, int textureWidth,
+            int textureHeight, Canvas canvas) {
+        int width = bounds.width();
+        int height = bounds.height();
+        Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureWidth,
+                Bitmap.Config.ARGB_8888);
+        canvas.setBitmap(bitmap);
+        int offsetX = (textureWidth - width) / 2;
+        int offsetY = (textureHeight - height) / 2;
+        canvas.drawBitmap(icon, bounds, new Rect(offsetX, offsetY, offsetX + width, offsetY + height), null);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    /**
+     * Returns the badge of {@param user}, asking the platform to badge an empty icon the first
+     * time, so that the icons are then badged without a binder call. The platform draws the
+     * badge of a managed profile over the icon, so drawing it over the icon gives the same
+     * result.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static UserBadge getUserBadge(UserHandleCompat user, Context context) {
+        UserBadge badge = sUserBadges.get(user);
+        if (badge == null) {
+            int size = getIconBitmapSize(context);
+            Drawable empty = new FixedSizeBitmapDrawable(
+                    Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888));
+            Drawable badged = context.getPackageManager().getUserBadgedIcon(empty, user.getUser());
+            if (badged == empty) {
+                badge = new UserBadge(null);
+            } else if (badged instanceof BitmapDrawable) {
+                badge = new UserBadge(((BitmapDrawable) badged).getBitmap());
+            } else {
+                badge = new UserBadge(createIconBitmap(badged, context));
+            }
+            sUserBadges.put(user, badge);
+        }
+        return badge;
+    }
+
+    private static void drawBadge(Bitmap icon, Bitmap badge, Canvas canvas) {
+        canvas.setBitmap(icon);
+        canvas.drawBitmap(badge, null, new Rect(0, 0, icon.getWidth(), icon.getHeight()), null);
+        canvas.setBitmap(null);
+    }
 
     /**
      * Returns a bitmap suitable for the all apps view.
@@ -225,70 +418,78 @@ public class LauncherIcons {
      * @param scale the scale to apply before drawing {@param icon} on the canvas
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context, float scale) {
+        IconRenderPool.RenderThread renderThread = IconRenderPool.currentRenderThread();
+        if (renderThread != null) {
+            return drawIconBitmap(icon, context, scale, renderThread.getCanvas());
+        }
         synchronized (sCanvas) {
-            final int iconBitmapSize = getIconBitmapSize(context);
-
-            int width = iconBitmapSize;
-            int height = iconBitmapSize;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+            return drawIconBitmap(icon, context, scale, sCanvas);
+        }
+    }
+
+    private static Bitmap drawIconBitmap(Drawable icon, Context context, float scale,
+            Canvas canvas) {
+        final int iconBitmapSize = getIconBitmapSize(context);
+
+        int width = iconBitmapSize;
+        int height = iconBitmapSize;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
+        }
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
+        }
 
-            // no intrinsic size --> use default size
-            int textureWidth = iconBitmapSize;
-            int textureHeight = iconBitmapSize;
-
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (textureWidth-width) / 2;
-            final int top = (textureHeight-height) / 2;
-
-            @SuppressWarnings("all") // suppress dead code warning
-            final boolean debug = false;
-            if (debug) {
-                // draw a big box for the icon for debugging
-                canvas.drawColor(sColors[sColorIndex]);
-                if (++sColorIndex >= sColors.length) sColorIndex = 0;
-                Paint debugPaint = new Paint();
-                debugPaint.setColor(0xffcccc00);
-                canvas.drawRect(left, top, left+width, top+height, debugPaint);
-            }
+        // no intrinsic size --> use default size
+        int textureWidth = iconBitmapSize;
+        int textureHeight = iconBitmapSize;
+
+        final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        canvas.setBitmap(bitmap);
+
+        final int left = (textureWidth-width) / 2;
+        final int top = (textureHeight-height) / 2;
+
+        @SuppressWarnings("all") // suppress dead code warning
+        final boolean debug = false;
+        if (debug) {
+            // draw a big box for the icon for debugging
+            canvas.drawColor(sColors[sColorIndex]);
+            if (++sColorIndex >= sColors.length) sColorIndex = 0;
+            Paint debugPaint = new Paint();
+            debugPaint.setColor(0xffcccc00);
+            canvas.drawRect(left, top, left+width, top+height, debugPaint);
+        }
 
-            sOldBounds.set(icon.getBounds());
-            icon.setBounds(left, top, left+width, top+height);
-            canvas.save();
-            canvas.scale(scale, scale, textureWidth / 2, textureHeight / 2);
-            icon.draw(canvas);
-            canvas.restore();
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
+        final Rect oldBounds = icon.copyBounds();
+        icon.setBounds(left, top, left+width, top+height);
+        canvas.save();
+        canvas.scale(scale, scale, textureWidth / 2, textureHeight / 2);
+        icon.draw(canvas);
+        canvas.restore();
+        icon.setBounds(oldBounds);
+        canvas.setBitmap(null);
 
-            return bitmap;
-        }
+        return bitmap;
     }
 
     /**
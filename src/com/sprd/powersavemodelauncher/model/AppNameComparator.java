@@ -19,6 +19,8 @@ import android.content.Context;
 
 import com.sprd.powersavemodelauncher.AppInfo;
 import com.sprd.powersavemodelauncher.ItemInfo;
+import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
+import com.sprd.powersavemodelauncher.compat.UserManagerCompat;
 import com.sprd.powersavemodelauncher.util.Thunk;
 
 import java.text.Collator;
@@ -31,29 +33,24 @@ import java.util.Comparator;
  */
 public class AppNameComparator {
     private final Collator mCollator;
-    private final AbstractUserComparator<ItemInfo> mAppInfoComparator;
+    private final UserManagerCompat mUserManager;
+    private final UserHandleCompat mMyUser;
+    private final Comparator<ItemInfo> mAppInfoComparator;
     private final Comparator<String> mSectionNameComparator;
 
     public AppNameComparator(Context context) {
         mCollator = Collator.getInstance();
-        mAppInfoComparator = new AbstractUserComparator<ItemInfo>(context) {
+        mUserManager = UserManagerCompat.getInstance(context);
+        mMyUser = UserHandleCompat.myUserHandle();
+        mAppInfoComparator = new Comparator<ItemInfo>() {
 
             @Override
             public final int compare(ItemInfo a, ItemInfo b) {
-                // Order by the title in the current locale
-                int result = compareTitles(a.title.toString(), b.title.toString());
-                if (result == 0 && a instanceof AppInfo && b instanceof AppInfo) {
-                    AppInfo aAppInfo = (AppInfo) a;
-                    AppInfo bAppInfo = (AppInfo) b;
-                    // If two apps have the same title, then order by the component name
-                    result = aAppInfo.componentName.compareTo(bAppInfo.componentName);
-                    if (result == 0) {
-                        // If the two apps are the same component, then prioritize by the order that
-                        // the app user was created (prioritizing the main user's apps)
-                        return super.compare(a, b);
-                    }
+                if (a instanceof AppInfo && b instanceof AppInfo) {
+                    return compareApps((AppInfo) a, (AppInfo) b);
                 }
-                return result;
+                // Order by the title in the current locale
+                return compareTitles(a.title.toString(), b.title.toString());
             }
         };
         mSectionNameComparator = new Comparator<String>() {
@@ -78,6 +75,83 @@ public class AppNameComparator {
         return mSectionNameComparator;
     }
 
+    /**
+     * Same order as comparing the titles, then the components, then the users, using the sort
+     * keys of the apps.
+     */
+    @Thunk int compareApps(AppInfo a, AppInfo b) {
+        SortKey aKey = getSortKey(a);
+        SortKey bKey = getSortKey(b);
+        // Ensure that we de-prioritize any titles that don't start with a linguistic letter or digit
+        if (aKey.startsWithLetter != bKey.startsWithLetter) {
+            return aKey.startsWithLetter ? -1 : 1;
+        }
+        int result = compareKeys(aKey.collationKey, bKey.collationKey);
+        if (result == 0) {
+            // If two apps have the same title, then order by the component name
+            result = a.componentName.compareTo(b.componentName);
+            if (result == 0) {
+                // If the two apps are the same component, then prioritize by the order that
+                // the app user was created (prioritizing the main user's apps)
+                result = Long.compare(aKey.userRank, bKey.userRank);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sort key of {@param app}, computing it only if its title changed since.
+     */
+    private SortKey getSortKey(AppInfo app) {
+        SortKey key = app.sortKey;
+        if (key == null || key.title != app.title || key.collator != mCollator) {
+            String title = app.title.toString();
+            key = new SortKey(app.title, mCollator,
+                    title.length() > 0 && Character.isLetterOrDigit(title.codePointAt(0)),
+                    mCollator.getCollationKey(title).toByteArray(),
+                    mMyUser.equals(app.user) ? Long.MIN_VALUE
+                            : mUserManager.getSerialNumberForUser(app.user));
+            app.sortKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Compares two collation keys byte by byte, which orders them as the collator orders the
+     * strings they were computed from.
+     */
+    private static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * What an app is sorted by, computed once per title instead of on every comparison.
+     */
+    public static class SortKey {
+        // The title and collator the key was computed with.
+        final CharSequence title;
+        final Collator collator;
+        final boolean startsWithLetter;
+        final byte[] collationKey;
+        // The main user first, then the other users by serial number.
+        final long userRank;
+
+        SortKey(CharSequence title, Collator collator, boolean startsWithLetter,
+                byte[] collationKey, long userRank) {
+            this.title = title;
+            this.collator = collator;
+            this.startsWithLetter = startsWithLetter;
+            this.collationKey = collationKey;
+            this.userRank = userRank;
+        }
+    }
+
     /**
      * Compares two titles with the same return value semantics as Comparator.
      */
@@ -0,0 +1,228 @@
+package com.sprd.powersavemodelauncher.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache with two tiers. Entries whose key is pinned are never evicted and do
+ * not count towards the max size, all other entries are evicted in least recently used order
+ * once their total size exceeds the max size, down to {@link #TRIM_FRACTION} of it.
+ *
+ * The size of an entry is computed once, when it is put in the cache. Callers should not change
+ * the size of a value after adding it, but put it again instead.
+ *
+ * This class is thread safe. Reads do not take any lock, only the writes are serialized.
+ */
+public abstract class PinnedLruCache<K, V> {
+
+    private static class Node<V> {
+        final V value;
+        final int size;
+        volatile long accessTime;
+
+        Node(V value, int size, long accessTime) {
+            this.value = value;
+            this.size = size;
+            this.accessTime = accessTime;
+        }
+    }
+
+    // Entries are evicted below the max size, so that the next puts do not each sort the
+    // entries again.
+    private static final float TRIM_FRACTION = 0.9f;
+
+    private final ConcurrentHashMap<K, Node<V>> mMap;
+    private final HashSet<K> mPinnedKeys = new HashSet<>();
+    private final long mMaxSize;
+
+    // Logical clock ordering the accesses.
+    private final AtomicLong mClock = new AtomicLong();
+
+    // Guarded by this.
+    private long mSize;
+    private long mPinnedSize;
+    private int mEvictionCount;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    public PinnedLruCache(int initialCapacity, long maxSize) {
+        mMap = new ConcurrentHashMap<>(initialCapacity);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the size of the entry, in the same unit as the max size of the cache.
+     */
+    protected abstract int sizeOf(K key, V value);
+
+    /**
+     * Returns the value for {@param key} and marks it as most recently used, or null if the key
+     * is not present.
+     */
+    public V get(K key) {
+        Node<V> node = mMap.get(key);
+        if (node == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        node.accessTime = mClock.incrementAndGet();
+        return node.value;
+    }
+
+    public boolean containsKey(K key) {
+        return mMap.containsKey(key);
+    }
+
+    public void put(K key, V value) {
+        Node<V> node = new Node<>(value, sizeOf(key, value), mClock.incrementAndGet());
+        synchronized (this) {
+            removeSize(key, mMap.put(key, node));
+            addSize(key, node);
+            trimToSize();
+        }
+    }
+
+    /**
+     * Adds the value only if there is no value for {@param key} yet.
+     * @return whether the value was added.
+     */
+    public boolean putIfAbsent(K key, V value) {
+        Node<V> node = new Node<>(value, sizeOf(key, value), mClock.incrementAndGet());
+        synchronized (this) {
+            if (mMap.putIfAbsent(key, node) != null) {
+                return false;
+            }
+            addSize(key, node);
+            trimToSize();
+            return true;
+        }
+    }
+
+    public V remove(K key) {
+        synchronized (this) {
+            Node<V> node = mMap.remove(key);
+            removeSize(key, node);
+            return node == null ? null : node.value;
+        }
+    }
+
+    /**
+     * Returns a weakly consistent view of the keys, in no particular order.
+     */
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(mMap.keySet());
+    }
+
+    /**
+     * Replaces the set of pinned keys. Entries which are no longer pinned become evictable.
+     */
+    public synchronized void setPinnedKeys(Collection<K> keys) {
+        mPinnedKeys.clear();
+        mPinnedKeys.addAll(keys);
+
+        mSize = 0;
+        mPinnedSize = 0;
+        for (Map.Entry<K, Node<V>> entry : mMap.entrySet()) {
+            addSize(entry.getKey(), entry.getValue());
+        }
+        trimToSize();
+    }
+
+    private void addSize(K key, Node<V> node) {
+        if (mPinnedKeys.contains(key)) {
+            mPinnedSize += node.size;
+        } else {
+            mSize += node.size;
+        }
+    }
+
+    private void removeSize(K key, Node<V> node) {
+        if (node == null) {
+            return;
+        }
+        if (mPinnedKeys.contains(key)) {
+            mPinnedSize -= node.size;
+        } else {
+            mSize -= node.size;
+        }
+    }
+
+    private void trimToSize() {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+        ArrayList<Map.Entry<K, Node<V>>> evictable = new ArrayList<>();
+        for (Map.Entry<K, Node<V>> entry : mMap.entrySet()) {
+            if (!mPinnedKeys.contains(entry.getKey())) {
+                evictable.add(entry);
+            }
+        }
+        // Sort on a copy of the access times, as get() changes them without the lock.
+        int count = evictable.size();
+        final long[] accessTimes = new long[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            accessTimes[i] = evictable.get(i).getValue().accessTime;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.compare(accessTimes[lhs], accessTimes[rhs]);
+            }
+        });
+        long trimmedSize = (long) (mMaxSize * TRIM_FRACTION);
+        for (int i = 0; i < count && mSize > trimmedSize; i++) {
+            Map.Entry<K, Node<V>> eldest = evictable.get(order[i]);
+            if (mMap.remove(eldest.getKey(), eldest.getValue())) {
+                mSize -= eldest.getValue().size;
+                mEvictionCount++;
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized long pinnedSize() {
+        return mPinnedSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    public int hitCount() {
+        return mHitCount.get();
+    }
+
+    public int missCount() {
+        return mMissCount.get();
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+                "PinnedLruCache[entries=%d,size=%d,pinnedSize=%d,maxSize=%d,"
+                        + "hits=%d,misses=%d,evictions=%d]",
+                mMap.size(), mSize, mPinnedSize, mMaxSize,
+                mHitCount.get(), mMissCount.get(), mEvictionCount);
+    }
+}
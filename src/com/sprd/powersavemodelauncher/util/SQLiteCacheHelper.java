@@ -7,8 +7,12 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.TreeSet;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
@@ -21,9 +25,26 @@ public abstract class SQLiteCacheHelper {
 
     private boolean mIgnoreWrites;
 
+    private final boolean mHighThroughput;
+    // Compiled insert and update statements keyed by their SQL, only used in high throughput mode.
+    private final HashMap<String, SQLiteStatement> mStatements = new HashMap<>();
+
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
+        this(context, name, version, tableName, false);
+    }
+
+    /**
+     * @param highThroughput whether to enable write-ahead logging, so that reads are not blocked
+     *                       by writes, and to reuse compiled statements for inserts and updates.
+     */
+    public SQLiteCacheHelper(Context context, String name, int version, String tableName,
+            boolean highThroughput) {
         mTableName = tableName;
+        mHighThroughput = highThroughput;
         mOpenHelper = new MySQLiteOpenHelper(context, name, version);
+        if (highThroughput) {
+            mOpenHelper.setWriteAheadLoggingEnabled(true);
+        }
 
         mIgnoreWrites = false;
     }
@@ -36,6 +57,25 @@ public abstract class SQLiteCacheHelper {
             return;
         }
         try {
+            if (mHighThroughput) {
+                TreeSet<String> columns = new TreeSet<>(values.keySet());
+                int argCount = whereArgs == null ? 0 : whereArgs.length;
+                Object[] bindArgs = new Object[columns.size() + argCount];
+                StringBuilder sql = new StringBuilder("UPDATE ").append(mTableName).append(" SET ");
+                int i = 0;
+                for (String column : columns) {
+                    sql.append(i > 0 ? "," : "").append(column).append("=?");
+                    bindArgs[i++] = values.get(column);
+                }
+                if (whereClause != null) {
+                    sql.append(" WHERE ").append(whereClause);
+                }
+                for (int j = 0; j < argCount; j++) {
+                    bindArgs[i++] = whereArgs[j];
+                }
+                executeCompiled(sql.toString(), bindArgs);
+                return;
+            }
             mOpenHelper.getWritableDatabase().update(mTableName, values, whereClause, whereArgs);
         } catch (SQLiteFullException e) {
             onDiskFull(e);
@@ -68,6 +108,24 @@ public abstract class SQLiteCacheHelper {
             return;
         }
         try {
+            if (mHighThroughput) {
+                TreeSet<String> columns = new TreeSet<>(values.keySet());
+                Object[] bindArgs = new Object[columns.size()];
+                StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                        .append(mTableName).append(" (");
+                int i = 0;
+                for (String column : columns) {
+                    sql.append(i > 0 ? "," : "").append(column);
+                    bindArgs[i++] = values.get(column);
+                }
+                sql.append(") VALUES (");
+                for (i = 0; i < bindArgs.length; i++) {
+                    sql.append(i > 0 ? ",?" : "?");
+                }
+                sql.append(")");
+                executeCompiled(sql.toString(), bindArgs);
+                return;
+            }
             mOpenHelper.getWritableDatabase().insertWithOnConflict(
                     mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
         } catch (SQLiteFullException e) {
@@ -77,6 +135,109 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * Executes a write statement, which unlike the other writes may target any table of the DB.
+     */
+    protected void executeUpdate(String sql, Object... bindArgs) {
+        if (mIgnoreWrites) {
+            return;
+        }
+        try {
+            if (mHighThroughput) {
+                executeCompiled(sql, bindArgs);
+                return;
+            }
+            mOpenHelper.getWritableDatabase().execSQL(sql, bindArgs);
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        }
+    }
+
+    /**
+     * Runs {@param r} inside a single transaction, so that all the writes it makes are committed
+     * at once instead of one by one.
+     */
+    public void runInTransaction(Runnable r) {
+        if (mIgnoreWrites) {
+            r.run();
+            return;
+        }
+        SQLiteDatabase db;
+        try {
+            db = mOpenHelper.getWritableDatabase();
+            if (mHighThroughput) {
+                // Let readers use their own connection while the transaction is open.
+                db.beginTransactionNonExclusive();
+            } else {
+                db.beginTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+            r.run();
+            return;
+        }
+        try {
+            r.run();
+            db.setTransactionSuccessful();
+        } finally {
+            try {
+                db.endTransaction();
+            } catch (SQLiteFullException e) {
+                onDiskFull(e);
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Ignoring sqlite exception", e);
+            }
+        }
+    }
+
+    /**
+     * Executes a write statement, compiling it only the first time the same SQL is used.
+     */
+    private void executeCompiled(String sql, Object[] bindArgs) {
+        SQLiteStatement statement;
+        synchronized (mStatements) {
+            statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = mOpenHelper.getWritableDatabase().compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+        }
+        synchronized (statement) {
+            statement.clearBindings();
+            for (int i = 0; i < bindArgs.length; i++) {
+                bindArg(statement, i + 1, bindArgs[i]);
+            }
+            statement.executeUpdateDelete();
+        }
+    }
+
+    private static void bindArg(SQLiteStatement statement, int index, Object arg) {
+        if (arg == null) {
+            statement.bindNull(index);
+        } else if (arg instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) arg);
+        } else if (arg instanceof Float || arg instanceof Double) {
+            statement.bindDouble(index, ((Number) arg).doubleValue());
+        } else if (arg instanceof Number) {
+            statement.bindLong(index, ((Number) arg).longValue());
+        } else if (arg instanceof Boolean) {
+            statement.bindLong(index, (Boolean) arg ? 1 : 0);
+        } else {
+            statement.bindString(index, arg.toString());
+        }
+    }
+
+    private void clearStatements() {
+        synchronized (mStatements) {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+        }
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
@@ -90,15 +251,32 @@ public abstract class SQLiteCacheHelper {
                 mTableName, columns, selection, selectionArgs, null, null, null);
     }
 
+    /**
+     * @see SQLiteDatabase#rawQuery(String, String[])
+     * Using the same SQL for repeated lookups lets the connection reuse its compiled statement.
+     */
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    }
+
     public void clearDbIfNeed() {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         if (db != null) {
+            clearStatements();
             mOpenHelper.clearDB(db);
         }
     }
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    /**
+     * Called when the version changes. Subclasses can migrate the table in place and return true,
+     * otherwise the table is dropped and created again.
+     */
+    protected boolean onUpgradeTable(SQLiteDatabase db, int oldVersion, int newVersion) {
+        return false;
+    }
+
     /**
      * A private inner class to prevent direct DB access.
      */
@@ -115,11 +293,20 @@ public abstract class SQLiteCacheHelper {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion != newVersion) {
+            if (oldVersion != newVersion && !migrate(db, oldVersion, newVersion)) {
                 clearDB(db);
             }
         }
 
+        private boolean migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+            try {
+                return onUpgradeTable(db, oldVersion, newVersion);
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Unable to migrate, resetting the DB", e);
+                return false;
+            }
+        }
+
         @Override
         public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (oldVersion != newVersion) {
@@ -0,0 +1,100 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the encode/decode time and blob size of the {@link IconCodec}s on the icons of the
+ * apps installed on the device. Results are written to logcat with the tag below.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IconCodecBenchmark {
+    private static final String TAG = "IconCodecBenchmark";
+
+    private static final int MAX_ICONS = 60;
+    private static final int ITERATIONS = 5;
+
+    private final List<Bitmap> mIcons = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        PackageManager pm = context.getPackageManager();
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        for (ResolveInfo info : pm.queryIntentActivities(intent, 0)) {
+            if (mIcons.size() >= MAX_ICONS) {
+                break;
+            }
+            mIcons.add(LauncherIcons.createBadgedIconBitmap(info.loadIcon(pm),
+                    UserHandleCompat.myUserHandle(), context,
+                    info.activityInfo.applicationInfo.targetSdkVersion));
+        }
+        assertTrue("No launcher icon found", !mIcons.isEmpty());
+    }
+
+    @Test
+    public void testPng() {
+        benchmark("PNG", IconCodec.PNG, true);
+    }
+
+    @Test
+    public void testWebp() {
+        // Falls back to PNG before Q, where WEBP is not lossless.
+        benchmark("WEBP", IconCodec.WEBP, true);
+    }
+
+    @Test
+    public void testRawRle() {
+        benchmark("RAW_RLE", IconCodec.RAW_RLE, true);
+    }
+
+    private void benchmark(String name, IconCodec codec, boolean checkLossless) {
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Bitmap icon : mIcons) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                byte[] data = codec.encode(icon);
+                encodeNanos += SystemClock.elapsedRealtimeNanos() - start;
+                assertNotNull(data);
+
+                start = SystemClock.elapsedRealtimeNanos();
+                Bitmap decoded = codec.decode(data, new BitmapFactory.Options());
+                decodeNanos += SystemClock.elapsedRealtimeNanos() - start;
+                assertNotNull(decoded);
+
+                if (i == 0) {
+                    totalBytes += data.length;
+                    if (checkLossless) {
+                        assertTrue(name + " is not lossless", icon.sameAs(decoded));
+                    }
+                }
+            }
+        }
+        int count = mIcons.size() * ITERATIONS;
+        Log.i(TAG, name + ": encode " + encodeNanos / count / 1000 + "us/icon, decode "
+                + decodeNanos / count / 1000 + "us/icon, " + totalBytes / mIcons.size()
+                + " bytes/icon over " + mIcons.size() + " icons");
+    }
+}
@@ -0,0 +1,237 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.sprd.powersavemodelauncher.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the packed alpha scan of {@link IconNormalizer} gives the same results as the
+ * previous byte by byte scan and ARGB shape test, on the icons of the apps installed on the
+ * device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IconNormalizerScanTest {
+
+    private static final int MIN_VISIBLE_ALPHA = 40;
+    private static final float PIXEL_DIFF_PERCENTAGE_THRESHOLD = 0.005f;
+    // Odd sizes, so that most rows neither start nor end on a word boundary and the scan also
+    // goes through its unaligned head and tail loops.
+    private static final int[] SIZES = {45, 97, 189, 325};
+
+    private Context mContext;
+    private final List<Drawable> mIcons = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        PackageManager pm = mContext.getPackageManager();
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        for (ResolveInfo info : pm.queryIntentActivities(intent, 0)) {
+            mIcons.add(info.loadIcon(pm));
+        }
+        assertTrue("No launcher icon found", !mIcons.isEmpty());
+    }
+
+    @Test
+    public void testBordersMatchByteScan() {
+        for (int size : SIZES) {
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+            Canvas canvas = new Canvas(bitmap);
+            for (int i = 0; i < mIcons.size(); i++) {
+                Drawable icon = mIcons.get(i);
+                // Also check icons which don't fill the whole bitmap.
+                int width = i % 2 == 0 ? size : size * 2 / 3;
+                int height = i % 3 == 0 ? size : size * 3 / 4;
+                bitmap.eraseColor(Color.TRANSPARENT);
+                icon.setBounds(0, 0, width, height);
+                icon.draw(canvas);
+
+                int stride = bitmap.getRowBytes();
+                byte[] bytes = toBytes(bitmap);
+                float[] expectedLeft = new float[size];
+                float[] expectedRight = new float[size];
+                Rect expectedBounds = new Rect();
+                boolean expectedFound = byteScan(bytes, stride, width, height,
+                        expectedLeft, expectedRight, expectedBounds);
+
+                float[] left = new float[size];
+                float[] right = new float[size];
+                Rect bounds = new Rect();
+                boolean found = IconNormalizer.findBorders(toWords(bitmap), stride,
+                        width, height, left, right, bounds);
+
+                String message = "icon " + i + " at size " + size;
+                assertEquals(message, expectedFound, found);
+                for (int y = 0; y < height; y++) {
+                    assertEquals(message + ", left of row " + y, expectedLeft[y], left[y], 0);
+                    assertEquals(message + ", right of row " + y, expectedRight[y], right[y], 0);
+                }
+                if (found) {
+                    assertEquals(message, expectedBounds, bounds);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShapeTestMatchesArgb() {
+        int size = SIZES[SIZES.length - 1];
+        AdaptiveIconDrawable wrapper = (AdaptiveIconDrawable)
+                mContext.getDrawable(R.drawable.adaptive_icon_drawable_wrapper).mutate();
+        wrapper.setBounds(0, 0, 1, 1);
+
+        Bitmap alpha = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(alpha);
+        Bitmap argb = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Bitmap mask = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+
+        for (int i = 0; i < mIcons.size(); i++) {
+            alpha.eraseColor(Color.TRANSPARENT);
+            mIcons.get(i).setBounds(0, 0, size, size);
+            mIcons.get(i).draw(canvas);
+
+            float[] left = new float[size];
+            float[] right = new float[size];
+            Rect bounds = new Rect();
+            if (!IconNormalizer.findBorders(toWords(alpha), alpha.getRowBytes(), size, size,
+                    left, right, bounds)) {
+                continue;
+            }
+
+            drawShapeTest(alpha, argb, wrapper.getIconMask(), bounds);
+            int[] pixels = new int[bounds.width() * bounds.height()];
+            argb.getPixels(pixels, 0, bounds.width(), bounds.left, bounds.top,
+                    bounds.width(), bounds.height());
+            int expected = 0;
+            for (int pixel : pixels) {
+                if (Color.alpha(pixel) > MIN_VISIBLE_ALPHA) {
+                    expected++;
+                }
+            }
+
+            drawShapeTest(alpha, mask, wrapper.getIconMask(), bounds);
+            long[] words = toWords(mask);
+            int count = 0;
+            for (int y = bounds.top; y < bounds.bottom; y++) {
+                int rowStart = y * mask.getRowBytes();
+                count += IconNormalizer.countVisible(words,
+                        rowStart + bounds.left, rowStart + bounds.right);
+            }
+
+            float area = bounds.width() * bounds.height();
+            assertEquals("icon " + i, expected / area < PIXEL_DIFF_PERCENTAGE_THRESHOLD,
+                    count / area < PIXEL_DIFF_PERCENTAGE_THRESHOLD);
+        }
+    }
+
+    /**
+     * Same drawing as {@link IconNormalizer}'s shape test, on {@param target}.
+     */
+    private void drawShapeTest(Bitmap icon, Bitmap target, Path maskPath, Rect bounds) {
+        Canvas canvas = new Canvas(target);
+        target.eraseColor(Color.TRANSPARENT);
+        Paint paintIcon = new Paint();
+        paintIcon.setColor(Color.WHITE);
+        canvas.drawBitmap(icon, 0, 0, paintIcon);
+
+        Path path = new Path(maskPath);
+        Matrix matrix = new Matrix();
+        matrix.setScale(bounds.width(), bounds.height());
+        matrix.postTranslate(bounds.left, bounds.top);
+        path.transform(matrix);
+
+        Paint paintMaskShape = new Paint();
+        paintMaskShape.setColor(Color.RED);
+        paintMaskShape.setStyle(Paint.Style.FILL);
+        paintMaskShape.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.XOR));
+        canvas.drawPath(path, paintMaskShape);
+
+        Paint paintOutline = new Paint();
+        paintOutline.setStrokeWidth(2 * mContext.getResources().getDisplayMetrics().density);
+        paintOutline.setStyle(Paint.Style.STROKE);
+        paintOutline.setColor(Color.BLACK);
+        paintOutline.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+        canvas.drawPath(path, paintOutline);
+    }
+
+    /**
+     * The scan {@link IconNormalizer} used before, one byte at a time.
+     */
+    private static boolean byteScan(byte[] pixels, int stride, int width, int height,
+            float[] outLeft, float[] outRight, Rect outBounds) {
+        int topY = -1;
+        int bottomY = -1;
+        int leftX = Integer.MAX_VALUE;
+        int rightX = -1;
+        for (int y = 0; y < height; y++) {
+            int firstX = -1;
+            int lastX = -1;
+            for (int x = 0; x < width; x++) {
+                if ((pixels[y * stride + x] & 0xFF) > MIN_VISIBLE_ALPHA) {
+                    if (firstX == -1) {
+                        firstX = x;
+                    }
+                    lastX = x;
+                }
+            }
+            outLeft[y] = firstX;
+            outRight[y] = lastX;
+            if (firstX != -1) {
+                bottomY = y;
+                if (topY == -1) {
+                    topY = y;
+                }
+                leftX = Math.min(leftX, firstX);
+                rightX = Math.max(rightX, lastX);
+            }
+        }
+        if (topY == -1) {
+            return false;
+        }
+        outBounds.set(leftX, topY, rightX, bottomY);
+        return true;
+    }
+
+    private static byte[] toBytes(Bitmap bitmap) {
+        byte[] bytes = new byte[bitmap.getByteCount()];
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    private static long[] toWords(Bitmap bitmap) {
+        long[] words = new long[(bitmap.getByteCount() + 7) / 8];
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.rewind();
+        buffer.asLongBuffer().get(words);
+        return words;
+    }
+}
@@ -0,0 +1,111 @@
+package com.sprd.powersavemodelauncher.graphics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.sprd.powersavemodelauncher.compat.UserHandleCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares rendering the icons of the apps installed on the device on the calling thread, as a
+ * single thread did before, with rendering them on an {@link IconRenderPool}. Results are
+ * written to logcat with the tag below.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IconRenderBenchmark {
+    private static final String TAG = "IconRenderBenchmark";
+
+    private static final int ITERATIONS = 3;
+
+    private Context mContext;
+    private final List<ResolveInfo> mApps = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        mApps.addAll(mContext.getPackageManager().queryIntentActivities(intent, 0));
+        assertTrue("No launcher icon found", !mApps.isEmpty());
+    }
+
+    @Test
+    public void testParallelRendering() throws Exception {
+        IconRenderPool pool = new IconRenderPool(mContext);
+
+        // Warm up both paths, and check that they render the same icons.
+        List<Bitmap> serial = renderSerially();
+        List<Bitmap> parallel = renderOnPool(pool);
+        assertEquals(serial.size(), parallel.size());
+        for (int i = 0; i < serial.size(); i++) {
+            assertTrue("Icon " + i + " differs", serial.get(i).sameAs(parallel.get(i)));
+        }
+
+        long serialNanos = 0;
+        long parallelNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            renderSerially();
+            serialNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            renderOnPool(pool);
+            parallelNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        int count = mApps.size() * ITERATIONS;
+        Log.i(TAG, "serial " + serialNanos / count / 1000 + "us/icon, "
+                + pool.getParallelism() + " threads " + parallelNanos / count / 1000
+                + "us/icon, speedup " + String.format("%.2f", (float) serialNanos / parallelNanos)
+                + "x over " + mApps.size() + " icons");
+    }
+
+    private List<Bitmap> renderSerially() {
+        List<Bitmap> icons = new ArrayList<>();
+        for (ResolveInfo info : mApps) {
+            icons.add(render(info));
+        }
+        return icons;
+    }
+
+    private List<Bitmap> renderOnPool(IconRenderPool pool) throws Exception {
+        List<Future<Bitmap>> futures = new ArrayList<>();
+        for (final ResolveInfo info : mApps) {
+            futures.add(pool.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return render(info);
+                }
+            }));
+        }
+        List<Bitmap> icons = new ArrayList<>();
+        for (Future<Bitmap> future : futures) {
+            icons.add(future.get());
+        }
+        return icons;
+    }
+
+    private Bitmap render(ResolveInfo info) {
+        PackageManager pm = mContext.getPackageManager();
+        Drawable icon = info.loadIcon(pm);
+        return LauncherIcons.createBadgedIconBitmap(icon, UserHandleCompat.myUserHandle(),
+                mContext, info.activityInfo.applicationInfo.targetSdkVersion);
+    }
+}